@@ -0,0 +1,50 @@
+/* ADContext.java
+
+Parameters and state of an AD tree (see ADTree)
+  - concentrations of all segments are kept here in a double
+    buffer (see StateBuffer), indexed by each node's slot
+
+Version 1.0 18-10-26
+*/
+
+
+public class ADContext extends SimContext {
+
+  float Kbr=1.0f;  // scale factor for branching probability
+  float dL=1.0f;  // length step
+  float minL=5.0f;  // min diffusion length
+  float a=0f;	// active transport rate
+  float D=1.0f;  // diffusion constant
+  float ICbr=1.0f;  // production rate
+  float gsCbr=1.0f; // soma uptake rate
+  float gtCbr=1.0f; // terminal uptake rate
+  int solver=TransportSolver.EXPLICIT;  // transport integration method
+
+  StateBuffer cb = new StateBuffer(64);  // concentrations (by node slot)
+  TransportSolver ts;  // tree solver (if used)
+
+
+  // Constructor with parameter values from data entry
+  public ADContext(String[][] par, float dt) {
+    super(dt);
+
+    Kbr = param(par, 0);
+    D = param(par, 1);
+    a = param(par, 2);
+    ICbr = param(par, 3);
+    gsCbr = param(par, 4);
+    gtCbr = param(par, 5);
+    dL = param(par, 6);
+    minL = param(par, 7);
+    Vbr = param(par, 8);
+    Vel = param(par, 9);
+    rCV = param(par, 10);
+    Tbstop = param(par, 11);
+    somaL = param(par, 12);
+    somadiam = param(par, 13);
+    termdiam = param(par, 14);
+    ebp = param(par, 15);
+    solver = (int)param(par, 16);
+  }
+
+}
@@ -12,6 +12,10 @@ Implements "diffusion + active transport" model of branching
       - volume specified by length dL
     - two new branches of length minL and containing no
       chemical are created on branching
+  - terminal lengths are kept as length at a reference time and
+    calculated when needed (see curLength and syncTree)
+  - concentrations are kept in the tree's double buffer (see
+    StateBuffer), which is swapped at the end of each step
       
 Version 1.0 BPG 29-3-03
   - implements model as described in Graham and van Ooyen, 
@@ -20,33 +24,11 @@ Version 1.0 BPG 29-3-03
 */
 
 import java.lang.Math;
-import java.util.Random;
 
 
 // New tree class
 public class ADTree extends Tree {
 
-  // New class variables
-  static float Kbr=1.0f;  // scale factor for branching probability
-  static float dt=1.0f;  // time step
-  static float dL=1.0f;  // length step
-  static float minL=5.0f;  // min diffusion length
-  static float a=0f;	// active transport rate
-  static float D=1.0f;  // diffusion constant
-  static float ICbr=1.0f;  // production rate
-  static float gsCbr=1.0f; // soma uptake rate
-  static float gtCbr=1.0f; // terminal uptake rate
-  static float somaL=1.0f;  // soma length
-  static float somadiam=1.0f;  // soma diameter
-  static float termdiam=1.0f;  // terminal node diameter
-  static float ebp=1.0f;  // branch power for diameter
-  static float Vel=1.0f;  // elongation phase growth rate
-  static float Vbr=1.0f;  // branching phase growth rate
-  static float crate=1.0f;	// mean elongation rate
-  static float rCV=1.0f;  // coefficient of variation of rates
-  static double Tbstop=1.0f;  // branching stop time
-  static int ntot=1;	// total number of terminals in growing tree
-
   // data entry
   public static String DEparams[][] = {
     {"Branching scale factor (Kbr):", "0.01925", "0.01925"},
@@ -64,137 +46,180 @@ public class ADTree extends Tree {
     {"Soma length:", "10.0", "10.0"},
     {"Soma diameter:", "10.0", "10.0"},
     {"Terminal diameter:", "1.0", "1.0"},
-    {"Branch power (e):", "8", "8"}};
-  public static final int Nparams=16;
+    {"Branch power (e):", "8", "8"},
+    {"Transport solver (0=expl,1=BE,2=CN):", "0", "0"}};
+  public static final int Nparams=17;
 
-  // random number generators for branching and elongation
-  static Random ranG=null;  // Gaussian random number
-  static Random ranp=null;  // Uniform random number
- 
   // Instance variables
-  float Cbr;	// conc. of branch-producing chemical
-  float Cbrp;	// value at previous time step
+  //   - conc. of branch-producing chemical is in ctx.cb at slot
   float erate; // variation in elongation rate
+  float lref;  // terminal length at time tref
+  double tref;  // reference time for terminal length
 
 
 
   // Constructor for cell body
-  public ADTree(int key, int order) {
-    super(null, key, order, somaL, somadiam);  // basic tree constructor
-    
-    ranp = new Random();  // randomness for branching
-    ranG = new Random();  // randomness for elongation rates
+  //   - c holds the parameters and state of this tree
+  public ADTree(ADContext c, int key, int order) {
+    super(null, key, order, c.somaL, c.somadiam);  // basic tree constructor
     
-    updateParams();  // get parameter values from data entry
-    Cbr = ICbr/(gsCbr+gtCbr);  // steady-state initially
-    Cbrp = Cbr;
-    crate = Vbr;  // branching phase mean elongation rate
-    erate = (float)ranG.nextGaussian();  // new variation
+    ctx = c;  // own parameters, random streams and branch keys
+    initConc(c.ICbr/(c.gsCbr+c.gtCbr));  // steady-state initially
+    ctx.crate = ctx.Vbr;  // branching phase mean elongation rate
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
     
     // add first neurite segment as left branch
-    this.ltree = new ADTree(this, key+1, Cbr);
-    Tree.brkey = key+2;  // reset branch key
+    this.ltree = new ADTree(this, key+1, c.cb.prev[slot]);
+    ctx.brkey = key+2;  // reset branch key
+    ctx.addTerminal(ltree);
   }
 
 
   // Constructor for first neurite branch
   public ADTree(Tree parent, int key, float Cinit) {
-    super(parent, key, 0, minL, termdiam);  // basic tree constructor
-    Cbr = Cinit;  // no branching chemical initially
-    Cbrp = Cbr;
-    erate = (float)ranG.nextGaussian();  // new variation
+    super(parent, key, 0, ((ADContext)parent.ctx).minL, parent.ctx.termdiam);  // basic tree constructor
+    initConc(Cinit);  // no branching chemical initially
+    lref = length;
+    tref = ctx.telong;
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
   }
 
 
   // Constructor for new branch
   public ADTree(Tree parent, int key, int order) {
-    super(parent, key, order, minL, termdiam);  // basic tree constructor
-    Cbr = 0;  // no branching chemical initially
-    Cbrp = Cbr;
-    erate = (float)ranG.nextGaussian();  // new variation
+    super(parent, key, order, ((ADContext)parent.ctx).minL, parent.ctx.termdiam);  // basic tree constructor
+    initConc(0);  // no branching chemical initially
+    lref = length;
+    tref = ctx.telong;
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
   }
 
 
   // Constructor for single compartment (continuation of branch)
   public ADTree(Tree parent, int key, int order, float erate) {
-    super(parent, key, order, minL, termdiam);  // basic tree constructor
-    Cbr = 0;
-    Cbrp = Cbr;
+    super(parent, key, order, ((ADContext)parent.ctx).minL, parent.ctx.termdiam);  // basic tree constructor
+    initConc(0);
     this.erate = erate;  // parental variation
+    lref = length;
+    tref = ctx.telong;
   }
 
 
+  // Allocate a buffer slot with initial concentration C0
+  void initConc(float C0) {
+    slot = ctx.newSlot();
+    ((ADContext)ctx).cb.set(slot, C0);
+  }
 
-  // Get parameter values from data entry (class method)
-  public static void updateParams() {
 
-    Kbr = Float.valueOf(DEparams[0][2]).floatValue();
-    D = Float.valueOf(DEparams[1][2]).floatValue();
-    a = Float.valueOf(DEparams[2][2]).floatValue();
-    ICbr = Float.valueOf(DEparams[3][2]).floatValue();
-    gsCbr = Float.valueOf(DEparams[4][2]).floatValue();
-    gtCbr = Float.valueOf(DEparams[5][2]).floatValue();
-    dL = Float.valueOf(DEparams[6][2]).floatValue();
-    minL = Float.valueOf(DEparams[7][2]).floatValue();
-    Vbr = Float.valueOf(DEparams[8][2]).floatValue();
-    Vel = Float.valueOf(DEparams[9][2]).floatValue();
-    rCV = Float.valueOf(DEparams[10][2]).floatValue();
-    Tbstop = Double.valueOf(DEparams[11][2]).floatValue();
-    somaL = Float.valueOf(DEparams[12][2]).floatValue();
-    somadiam = Float.valueOf(DEparams[13][2]).floatValue();
-    termdiam = Float.valueOf(DEparams[14][2]).floatValue();
-    ebp = Float.valueOf(DEparams[15][2]).floatValue();
+
+  // Randomly branch all terminal nodes
+  //   - concentrations are first updated throughout the tree
+  //   - terminals are then taken from the tree's terminal list
+  public void branchTree(double t) {
+    ADContext c = (ADContext)ctx;
+    int totTerms = c.nterms;
+
+    transport(t);
+
+    // Randomly branch terminal nodes (during branch phase only)
+    //   - new terminals are added at the end of the list
+    if (t <= c.Tbstop) {
+      for (int i = 0; i < totTerms; i++)
+        ((ADTree)c.terms[i]).branchTerminal();
+    };
 
   }
 
 
-  // Set time step (class method)
-  public static void setTimeStep(float dt) {
-    ADTree.dt = dt;
+  // Randomly branch this terminal node
+  void branchTerminal() {
+    ADContext c = (ADContext)ctx;
+
+    if (c.cb.cur[slot]*c.Kbr*c.dt >= c.ranp.nextDouble()) {
+      length = curLength();  // final length
+      this.ltree = new ADTree(this, c.nextKey(), order+1);
+      this.rtree = new ADTree(this, c.nextKey(), order+1);
+      c.replaceTerminal(this, ltree);
+      c.addTerminal(rtree);
+      c.addBranchPoint(this);
+    };
+
   }
 
 
+  // Update concentrations by the chosen method
+  void transport(double t) {
+    ADContext c = (ADContext)ctx;
 
-  // Randomly branch all terminal nodes
-  public void branchTree(double t) {
+    if (c.solver == TransportSolver.EXPLICIT && c.adapt == SimContext.FIXED)
+      transportTree(t);
+    else
+      solveTree(t);
+
+  }
+
+
+  // Update concentrations throughout tree
+  //   - nodes are taken in preorder (see Tree.preorder)
+  void transportTree(double t) {
+    int nn = preorder();
+    Tree[] nodes = ctx.nodes;
+
+    for (int i = 0; i < nn; i++)
+      ((ADTree)nodes[i]).transportNode();
+
+  }
+
+
+  // Update concentration of this node
+  //   - from previous values of this node and its neighbours
+  void transportNode() {
     // new segments start with length minL
     // concentrations measured in volume of length dL at
     // end of each segment
 
+    ADContext c = (ADContext)ctx;
     float Td=0, Ta=0;  // diffusive and active transfer
+    float[] Cp = c.cb.prev;  // previous concentrations
+    float Cbrp = Cp[slot];
+    float Cbr;
 
     // Diffusion and active transport
     
-    // diffusion into segment
-    if (parent == null) {  // soma
-      if (ltree.length >= minL)
-	     Td = ltree.diam*ltree.diam*(ltree.getValue("Cbrp") - Cbrp) / (((length-dL)/2)+ltree.length); 
-    }
-    else if (parent.parent == null && length >= minL) {  // parent is soma
-      Td = diam*diam*(parent.getValue("Cbrp") - Cbrp) / (((parent.length-dL)/2)+length);
-    }
-    else if (length >= minL) {
-      Td = diam*diam*(parent.getValue("Cbrp") - Cbrp) / length;
-    };
+    // (terminal lengths are only needed if there is diffusion)
+    if (c.D != 0) {
+      // diffusion into segment
+      if (parent == null) {  // soma
+        if (((ADTree)ltree).len() >= c.minL)
+	       Td = ltree.diam*ltree.diam*(Cp[ltree.slot] - Cbrp) / (((length-c.dL)/2)+((ADTree)ltree).len()); 
+      }
+      else if (parent.parent == null && len() >= c.minL) {  // parent is soma
+        Td = diam*diam*(Cp[parent.slot] - Cbrp) / (((parent.length-c.dL)/2)+len());
+      }
+      else if (len() >= c.minL) {
+        Td = diam*diam*(Cp[parent.slot] - Cbrp) / len();
+      };
     
-    // diffusive transfer into child branches
-    // (all compartments have length at least minL)
-    if (parent != null) {  // not soma
-      if (ltree != null)
-        if (ltree.length >= minL)
-	       Td = Td - (ltree.diam*ltree.diam*(Cbrp-ltree.getValue("Cbrp"))/ltree.length);
-      if (rtree != null)
-        if (rtree.length >= minL)
-	       Td = Td - (rtree.diam*rtree.diam*(Cbrp-rtree.getValue("Cbrp"))/rtree.length);
+      // diffusive transfer into child branches
+      // (all compartments have length at least minL)
+      if (parent != null) {  // not soma
+        if (ltree != null)
+          if (((ADTree)ltree).len() >= c.minL)
+	         Td = Td - (ltree.diam*ltree.diam*(Cbrp-Cp[ltree.slot])/((ADTree)ltree).len());
+        if (rtree != null)
+          if (((ADTree)rtree).len() >= c.minL)
+	         Td = Td - (rtree.diam*rtree.diam*(Cbrp-Cp[rtree.slot])/((ADTree)rtree).len());
+      };
     };
     
     // active transport to children
@@ -205,102 +230,178 @@ public class ADTree extends Tree {
 
     // active transport from parent
     if (parent != null) // not soma
-      Ta = Ta + parent.getValue("Cbrp")*diam*diam;
+      Ta = Ta + Cp[parent.slot]*diam*diam;
     
     // calculate new concentrations
-    Td = Td / (diam*diam*dL);
-    Ta = Ta / (diam*diam*dL);
-    Cbr = Cbrp + (dt*((D*Td)+(a*Ta)));
+    Td = Td / (diam*diam*c.dL);
+    Ta = Ta / (diam*diam*c.dL);
+    Cbr = Cbrp + (c.dt*((c.D*Td)+(c.a*Ta)));
 
     // Production
     if (parent == null)  // soma
-      Cbr = Cbr + (dt*(ICbr-(gsCbr*Cbrp)));  // production - decay
+      Cbr = Cbr + (c.dt*(c.ICbr-(c.gsCbr*Cbrp)));  // production - decay
       
     // Decay
     if (ltree == null && rtree == null)  // terminal
-      Cbr = Cbr - (dt*gtCbr*Cbrp);  // decay
+      Cbr = Cbr - (c.dt*c.gtCbr*Cbrp);  // decay
       
     if (Cbr < 0) Cbr = 0;  // cannot have negative concentrations
-    
-    // Randomly branch terminal node (during branch phase only)
-    if (t <= Tbstop && ltree == null && rtree == null) {
-      if (Cbr*Kbr*dt >= ranp.nextDouble()) {
-        this.ltree = new ADTree(this, Tree.brkey++, order+1);
-        this.rtree = new ADTree(this, Tree.brkey++, order+1);
+    c.cb.cur[slot] = Cbr;
+
+  }
+
+
+
+  // Update concentrations throughout tree by implicit method
+  //   - same transfer as transportTree, solved over the whole tree
+  //   - used for the implicit methods and for adaptive time steps
+  void solveTree(double t) {
+    ADContext c = (ADContext)ctx;
+    TransportSolver ts;
+    int nn = preorder();
+    ADTree nd, p;
+
+    if (c.ts == null) c.ts = new TransportSolver(64);
+    ts = c.ts;
+    ts.setSize(nn);
+    System.arraycopy(c.npar, 0, ts.par, 0, nn);
+    for (int i = 0; i < nn; i++) {
+      nd = (ADTree)c.nodes[i];
+      ts.vol[i] = nd.diam*nd.diam*c.dL;
+      ts.cin[i] = c.cb.prev[nd.slot];
+      if (nd.parent == null) {  // soma: production - decay
+        ts.s[i] = c.ICbr;
+        ts.k[i] = c.gsCbr;
+      }
+      else {
+        p = (ADTree)nd.parent;
+        if (c.D != 0 && nd.len() >= c.minL) {  // diffusion from parent
+          if (p.parent == null)  // parent is soma
+            ts.gd[i] = c.D*nd.diam*nd.diam / (((p.length-c.dL)/2)+nd.len());
+          else
+            ts.gd[i] = c.D*nd.diam*nd.diam / nd.len();
+        };
+        ts.ga[i] = c.a*nd.diam*nd.diam;  // active transport from parent
+        if (nd.ltree == null && nd.rtree == null)  // terminal: decay
+          ts.k[i] = c.gtCbr;
       };
-    }
-    else {  // search for terminals to branch
-      if (ltree != null) ltree.branchTree(t);
-      if (rtree != null) rtree.branchTree(t);
     };
-      
+
+    ts.estimate = (c.adapt == SimContext.ERROR);
+    ts.solve(ts.cin, ts.cout, c.dt, c.solver);
+    c.lerr = ts.err;
+    if (c.solver == TransportSolver.EXPLICIT) c.rmax = ts.rmax;  // stability limit
+    for (int i = 0; i < nn; i++)
+      c.cb.cur[c.nodes[i].slot] = ts.cout[i];
+
   }
 
 
 
   // Elongate terminal nodes
+  //   - terminals grow at a constant rate within each phase, so
+  //     only the elongation time is recorded
+  //   - terminal lengths are rebased when the rate changes
   public void elongateTree(double t) {
+    ADTree tn;
+
+    // Check for elongation phase
+    if (t > ctx.Tbstop && ctx.crate != ctx.Vel) {  // start of elongation phase
+      for (int i = 0; i < ctx.nterms; i++) {
+        tn = (ADTree)ctx.terms[i];
+        tn.lref = tn.curLength();
+        tn.tref = ctx.telong;
+      };
+      ctx.crate = ctx.Vel;
+    }
+    else if (t <= ctx.Tbstop)
+      ctx.crate = ctx.Vbr;  // branching phase
+    ctx.telong = t;
+    
+  }
 
-    // Check for elongation phase (soma only)
-    if (parent == null) {
-      if (t > Tbstop) crate = Vel;  // elongation phase
-      else crate = Vbr;  // branching phase
-    };
 
-    // Elongate terminal nodes
-    if (ltree == null && rtree == null) {
-      length = length + (((rCV*crate*erate) + crate) * dt);
-      }
-    else {  // search for terminals to elongate
-      if (ltree != null) ltree.elongateTree(t);
-      if (rtree != null) rtree.elongateTree(t);
+  // Current length of this terminal
+  float curLength() {
+    return lref + (((ctx.rCV*ctx.crate*erate) + ctx.crate) * (float)(ctx.telong-tref));
+  }
+
+
+  // Current length of this node
+  float len() {
+    if (tindex >= 0) return curLength();  // terminal
+    else return length;
+  }
+
+
+  // Set terminal lengths to their current values
+  public void syncTree() {
+    ADTree tn;
+
+    for (int i = 0; i < ctx.nterms; i++) {
+      tn = (ADTree)ctx.terms[i];
+      tn.length = tn.curLength();
     };
-    
+
   }
 
 
 
   // Set segment diameters
+  //   - only nodes on the paths from new branch points to the
+  //     soma change diameter (using cached terminal counts)
   public void diamTree(double t) {
-
-    if ((ltree == null && rtree == null) || ebp == 0) 
-      return;  // diameter already set
-    else {
-      if (ltree != null) ltree.diamTree(t);
-      if (rtree != null) rtree.diamTree(t);
-      if (parent != null) { // do not adjust soma!
-        float diamp = diam;
-        diam = termdiam*(float)Math.pow((double)countTerminals(),(double)(1/ebp));
-        Cbr = Cbr * ((diamp*diamp) / (diam*diam));
-        Cbrp = Cbrp * ((diamp*diamp) / (diam*diam));
+    ADTree p;
+
+    if (ctx.ebp != 0) {
+      for (int i = 0; i < ctx.nbrpts; i++) {
+        p = (ADTree)ctx.brpts[i];
+        while (p.parent != null) {  // do not adjust soma!
+          p.setDiam();
+          p = (ADTree)p.parent;
+        };
       };
     };
+    ctx.nbrpts = 0;
+
+  }
+
+
+  // Set diameter from number of terminals (branch power rule)
+  void setDiam() {
+    float diamp = diam;
+
+    diam = ctx.termdiam*(float)Math.pow((double)nterm,(double)(1/ctx.ebp));
+    ((ADContext)ctx).cb.scale(slot, (diamp*diamp) / (diam*diam));
 
   }
 
 
 
   // Update previous concentration values
+  //   - buffers are swapped; every node is recalculated at the
+  //     next step
   public void updateTree(double t) {
 
-    Cbrp = Cbr;
-    if (ltree != null) ltree.updateTree(t); 
-    if (rtree != null) rtree.updateTree(t); 
-      
-  }
+    ((ADContext)ctx).cb.swap();
 
+  }
 
 
-  // Get parameter value
-  public float getValue(String vname) {
 
-    if (vname.equals("Cbr"))
-      return Cbr;
-    else if (vname.equals("Cbrp"))
-      return Cbrp;
-    else
-      return 0f;
+  // Model variables
+  //   - between time steps the latest concentrations are the
+  //     previous values of the next step
+  static final TreeVar[] VARS = {
+    new TreeVar("Cbr") {
+      public float get(Tree t) { return ((ADContext)t.ctx).cb.prev[t.slot]; }
+    },
+    new TreeVar("Cbrp") {
+      public float get(Tree t) { return ((ADContext)t.ctx).cb.prev[t.slot]; }
+    }};
 
+  public TreeVar[] variables() {
+    return VARS;
   }
 
 
@@ -2,37 +2,18 @@
 
 Implements "compartmental" version of AD model
   - uses "growth cone" scheme of Graham and van Ooyen, Neurocomputing 2001 
+  - concentrations are kept in the tree's double buffer (see
+    StateBuffer), which is swapped at the end of each step
 
 Version 1 BPG 4-3-03
 */
 
 import java.lang.Math;
-import java.util.Random;
 
 
 // New tree class
 public class ADcmTree extends Tree {
 
-  // New class variables
-  static float Kbr=1.0f;  // scale factor for branching probability
-  static float dt=1.0f;  // time step
-  static float dL=1.0f;  // length increment
-  static float gcL=1.0f;  // growth cone length
-  static float a=0f;	// active transport rate
-  static float D=1.0f;  // diffusion constant
-  static float ICbr=1.0f;  // production rate
-  static float gsCbr=1.0f; // soma uptake rate
-  static float gtCbr=1.0f; // terminal uptake rate
-  static float somaL=1.0f;  // soma length
-  static float somadiam=1.0f;  // soma diameter
-  static float termdiam=1.0f;  // terminal node diameter
-  static float ebp=1.0f;  // branch power for diameter
-  static float Vel=1.0f;  // elongation phase growth rate
-  static float Vbr=1.0f;  // branching phase growth rate
-  static float crate=1.0f;	// mean elongation rate
-  static float rCV=1.0f;  // coefficient of variation of rates
-  static double Tbstop=1.0;  // branching stop time
-
   // data entry
   public static String DEparams[][] = {
     {"Branching scale factor (Kbr):", "0.01925", "0.01925"},
@@ -50,64 +31,56 @@ public class ADcmTree extends Tree {
     {"Soma length:", "10.0", "10.0"},
     {"Soma diameter:", "10.0", "10.0"},
     {"Terminal diameter:", "1.0", "1.0"},
-    {"Branch power (e):", "8", "8"}};
-  public static final int Nparams=16;
+    {"Branch power (e):", "8", "8"},
+    {"Transport solver (0=expl,1=BE,2=CN):", "0", "0"}};
+  public static final int Nparams=17;
 
-  // random number generators for branching and elongation
-  static Random ranG=null;  // Gaussian random number
-  static Random ranp=null;  // Uniform random number
- 
   // Instance variables
-  float Cbr;	// conc. of branch-producing chemical
-  float Cbrp;	// value at previous time step
+  //   - conc. of branch-producing chemical is in ctx.cb at slot
   float erate; // variation in elongation rate
   float deltL;	// change in length
 
 
 
   // Constructor for cell body
-  public ADcmTree(int key, int order) {
-    super(null, key, order, somaL, somadiam);  // basic tree constructor
-    
-    ranp = new Random();  // randomness for branching
-    ranG = new Random();  // randomness for elongation rates
+  //   - c holds the parameters and state of this tree
+  public ADcmTree(ADcmContext c, int key, int order) {
+    super(null, key, order, c.somaL, c.somadiam);  // basic tree constructor
     
-    updateParams();  // get parameter values from data entry
-    Cbr = ICbr/(gsCbr+gtCbr);  // steady-state initially
-    Cbrp = Cbr;
-    crate = Vbr;  // branching phase mean elongation rate
+    ctx = c;  // own parameters, random streams and branch keys
+    initConc(c.ICbr/(c.gsCbr+c.gtCbr));  // steady-state initially
+    ctx.crate = ctx.Vbr;  // branching phase mean elongation rate
     deltL = 0;
     pathlength = 0;
-    erate = (float)ranG.nextGaussian();  // new variation
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
     
     // add first neurite segment (compartment+GC) as left branch
-    this.ltree = new ADcmTree(this, key+1, order, Cbr);
-    Tree.brkey = key+2;  // reset branch key
+    this.ltree = new ADcmTree(this, key+1, order, c.cb.prev[slot]);
+    ctx.brkey = key+2;  // reset branch key
+    ctx.addTerminal(ltree.ltree);  // growth cone
   }
 
 
   // Constructor for new branch (GC plus one compartment)
   public ADcmTree(Tree parent, int key, int order, float C0) {
-    super(parent, key, order, dL, termdiam);  // basic tree constructor
-    Cbr = C0;  // initial branching chemical
-    Cbrp = Cbr;
-    erate = (float)ranG.nextGaussian();  // new variation
+    super(parent, key, order, ((ADcmContext)parent.ctx).dL, parent.ctx.termdiam);  // basic tree constructor
+    initConc(C0);  // initial branching chemical
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
     // add growth cone (actual terminal)
-    ltree = new ADcmTree(this,key,order,diam,gcL,Cbr,erate);
+    ltree = new ADcmTree(this,key,order,diam,((ADcmContext)ctx).gcL,C0,erate);
   }
 
 
   // Constructor for single compartment (continuation of branch)
   public ADcmTree(Tree parent, int key, int order, float dm0, float L0, float C0, float er0) {
     super(parent, key, order, L0, dm0);  // basic tree constructor
-    Cbr = C0;
-    Cbrp = Cbr;
+    initConc(C0);
     erate = er0;
     deltL = 0;
     if (parent != null)
@@ -117,60 +90,118 @@ public class ADcmTree extends Tree {
   }
 
 
+  // Allocate a buffer slot with initial concentration C0
+  void initConc(float C0) {
+    slot = ctx.newSlot();
+    ((ADcmContext)ctx).cb.set(slot, C0);
+  }
+
+
+
+  // Randomly branch all terminal nodes
+  //   - concentrations are first updated throughout the tree
+  //   - growth cones are then taken from the tree's terminal list
+  public void branchTree(double t) {
+    ADcmContext c = (ADcmContext)ctx;
+    int totTerms = c.nterms;
 
-  // Get parameter values from data entry (class method)
-  public static void updateParams() {
+    transport(t);
 
-    Kbr = Float.valueOf(DEparams[0][2]).floatValue();
-    D = Float.valueOf(DEparams[1][2]).floatValue();
-    a = Float.valueOf(DEparams[2][2]).floatValue();
-    ICbr = Float.valueOf(DEparams[3][2]).floatValue();
-    gsCbr = Float.valueOf(DEparams[4][2]).floatValue();
-    gtCbr = Float.valueOf(DEparams[5][2]).floatValue();
-    dL = Float.valueOf(DEparams[6][2]).floatValue();
-    gcL = Float.valueOf(DEparams[7][2]).floatValue();
-    Vbr = Float.valueOf(DEparams[8][2]).floatValue();
-    Vel = Float.valueOf(DEparams[9][2]).floatValue();
-    rCV = Float.valueOf(DEparams[10][2]).floatValue();
-    Tbstop = Double.valueOf(DEparams[11][2]).floatValue();
-    somaL = Float.valueOf(DEparams[12][2]).floatValue();
-    somadiam = Float.valueOf(DEparams[13][2]).floatValue();
-    termdiam = Float.valueOf(DEparams[14][2]).floatValue();
-    ebp = Float.valueOf(DEparams[15][2]).floatValue();
+    // Randomly branch growth cones (during branch phase only)
+    //   - new growth cones are added at the end of the list
+    if (t <= c.Tbstop) {
+      for (int i = 0; i < totTerms; i++)
+        ((ADcmTree)c.terms[i]).branchTerminal();
+    };
 
   }
 
 
-  // Set time step (class method)
-  public static void setTimeStep(float dt) {
-    ADcmTree.dt = dt;
+  // Randomly branch this growth cone
+  //   - as in the original depth-first search, the new right branch
+  //     is then visited straight away: it gets its transport update
+  //     (explicit method) and its growth cone may branch in the same
+  //     step; the new left branch waits for the next step
+  void branchTerminal() {
+    ADcmContext c = (ADcmContext)ctx;
+    ADcmTree rb;
+
+    if (c.cb.cur[slot]*c.Kbr*c.dt >= c.ranp.nextDouble()) {
+      // this compartment is removed and its contents distributed
+      // to its children
+      // calculate relative volume and concentration
+      float rvol = diam*diam*length/(c.termdiam*c.termdiam*(c.dL+c.gcL));
+      float newC = c.cb.cur[slot]*0.5f*rvol;
+      ctx.freeSlot(slot);
+      // create new branches
+      parent.ltree = new ADcmTree(parent, c.nextKey(), order+1, newC);
+      parent.rtree = new ADcmTree(parent, c.nextKey(), order+1, newC);
+      c.replaceTerminal(this, parent.ltree.ltree);
+      c.addTerminal(parent.rtree.ltree);
+      c.addBranchPoint(parent);
+      rb = (ADcmTree)parent.rtree;
+      if (c.solver == TransportSolver.EXPLICIT && c.adapt == SimContext.FIXED) {
+        rb.transportNode();
+        ((ADcmTree)rb.ltree).transportNode();
+      };
+      ((ADcmTree)rb.ltree).branchTerminal();
+    };
+
   }
 
 
+  // Update concentrations by the chosen method
+  void transport(double t) {
+    ADcmContext c = (ADcmContext)ctx;
 
-  // Randomly branch all terminal nodes
-  public void branchTree(double t) {
+    if (c.solver == TransportSolver.EXPLICIT && c.adapt == SimContext.FIXED)
+      transportTree(t);
+    else
+      solveTree(t);
+
+  }
+
+
+  // Update concentrations throughout tree
+  //   - nodes are taken in preorder (see Tree.preorder)
+  void transportTree(double t) {
+    int nn = preorder();
+    Tree[] nodes = ctx.nodes;
+
+    for (int i = 0; i < nn; i++)
+      ((ADcmTree)nodes[i]).transportNode();
+
+  }
+
+
+  // Update concentration of this node
+  //   - from previous values of this node and its neighbours
+  void transportNode() {
     // new segments start with compartment (dL) + GC (gcL)
     // concentrations measured at centre of each compartment
 
+    ADcmContext c = (ADcmContext)ctx;
     float Td=0, Ta=0;  // diffusive and active transfer
+    float[] Cp = c.cb.prev;  // previous concentrations
+    float Cbrp = Cp[slot];
+    float Cbr;
 
     // Diffusive and active transport
     
     // Diffusive transfer
     Td = 0;
     if (parent != null)  // transfer from parent
-      Td = diam*diam*(parent.getValue("Cbrp") - Cbrp) / (length+parent.length);
+      Td = diam*diam*(Cp[parent.slot] - Cbrp) / (length+parent.length);
     // subtract transfer into child branches
     if (ltree != null)
-      Td = Td - (ltree.diam*ltree.diam*(Cbrp-ltree.getValue("Cbrp"))/(length+ltree.length));
+      Td = Td - (ltree.diam*ltree.diam*(Cbrp-Cp[ltree.slot])/(length+ltree.length));
     if (rtree != null)
-      Td = Td - (rtree.diam*rtree.diam*(Cbrp-rtree.getValue("Cbrp"))/(length+rtree.length)); 
+      Td = Td - (rtree.diam*rtree.diam*(Cbrp-Cp[rtree.slot])/(length+rtree.length)); 
     
     // Active transport
     Ta = 0;
     if (parent != null)  // transfer from parent
-      Ta = Ta + parent.getValue("Cbrp")*diam*diam;
+      Ta = Ta + Cp[parent.slot]*diam*diam;
     // subtract transfer into child branches
     if (ltree != null)
       Ta = Ta - Cbrp*ltree.diam*ltree.diam;
@@ -180,127 +211,171 @@ public class ADcmTree extends Tree {
     // calculate new concentrations
     Td = (2*Td) / (diam*diam*length);
     Ta = Ta / (diam*diam*length);
-    Cbr = Cbrp + (dt*((D*Td)+(a*Ta)));
+    Cbr = Cbrp + (c.dt*((c.D*Td)+(c.a*Ta)));
     
     // Production
     if (parent == null)  // soma
-      Cbr = Cbr + (dt*(ICbr-(gsCbr*Cbrp)));  // production - decay
+      Cbr = Cbr + (c.dt*(c.ICbr-(c.gsCbr*Cbrp)));  // production - decay
       
     // Decay
     if (ltree == null && rtree == null)  // terminal
-      Cbr = Cbr - (dt*gtCbr*Cbrp);  // decay
+      Cbr = Cbr - (c.dt*c.gtCbr*Cbrp);  // decay
       
     if (Cbr < 0) Cbr = 0;  // cannot have negative concentrations
-    
-    // Randomly branch terminal node (during branch phase only)
-    if (t <= Tbstop && ltree == null && rtree == null) {
-      // randomly branch terminal node
-      if (Cbr*Kbr*dt >= ranp.nextDouble()) {
-	// this compartment is removed and its contents distributed
-	// to its children
-        // calculate relative volume and concentration
-        float rvol = diam*diam*length/(termdiam*termdiam*(dL+gcL));
-        float newC = Cbr*0.5f*rvol;
-        // create new branches
-        parent.ltree = new ADcmTree(parent, Tree.brkey++, order+1, newC);
-        parent.rtree = new ADcmTree(parent, Tree.brkey++, order+1, newC);
+    c.cb.cur[slot] = Cbr;
+
+  }
+
+
+
+  // Update concentrations throughout tree by implicit method
+  //   - same transfer as transportTree, solved over the whole tree
+  //   - used for the implicit methods and for adaptive time steps
+  void solveTree(double t) {
+    ADcmContext c = (ADcmContext)ctx;
+    TransportSolver ts;
+    int nn = preorder();
+    ADcmTree nd;
+
+    if (c.ts == null) c.ts = new TransportSolver(64);
+    ts = c.ts;
+    ts.setSize(nn);
+    System.arraycopy(c.npar, 0, ts.par, 0, nn);
+    for (int i = 0; i < nn; i++) {
+      nd = (ADcmTree)c.nodes[i];
+      ts.vol[i] = nd.diam*nd.diam*nd.length;
+      ts.cin[i] = c.cb.prev[nd.slot];
+      if (nd.parent == null) {  // soma: production - decay
+        ts.s[i] = c.ICbr;
+        ts.k[i] = c.gsCbr;
+      }
+      else {
+        ts.gd[i] = 2*c.D*nd.diam*nd.diam / (nd.length+nd.parent.length);
+        ts.ga[i] = c.a*nd.diam*nd.diam;
+        if (nd.ltree == null && nd.rtree == null)  // terminal: decay
+          ts.k[i] = c.gtCbr;
       };
-    }
-    else {  // search for terminals to branch
-      if (ltree != null) ltree.branchTree(t);
-      if (rtree != null) rtree.branchTree(t);
     };
-      
+
+    ts.estimate = (c.adapt == SimContext.ERROR);
+    ts.solve(ts.cin, ts.cout, c.dt, c.solver);
+    c.lerr = ts.err;
+    if (c.solver == TransportSolver.EXPLICIT) c.rmax = ts.rmax;  // stability limit
+    for (int i = 0; i < nn; i++)
+      c.cb.cur[c.nodes[i].slot] = ts.cout[i];
+
   }
 
 
 
   // Elongate terminal nodes
+  //   - the compartment preceding each growth cone elongates
   public void elongateTree(double t) {
+    ADcmContext c = (ADcmContext)ctx;
 
-    // Check for elongation phase (soma only)
-    if (parent == null) {
-      if (t > Tbstop) crate = Vel;  // elongation phase
-      else crate = Vbr;  // branching phase
-    };
+    // Check for elongation phase
+    if (t > c.Tbstop) c.crate = c.Vel;  // elongation phase
+    else c.crate = c.Vbr;  // branching phase
 
-    // Elongation (if child is growth cone)
-    if (parent != null && ltree != null && ltree.ltree == null) {  
-      float newL = length + ltree.getValue("deltL");
+    for (int i = 0; i < c.nterms; i++)
+      ((ADcmTree)c.terms[i]).elongateTerminal();
+    
+  }
+
+
+  // Elongate this growth cone and its preceding compartment
+  //   - as in the original depth-first search, a compartment added
+  //     by splitting is itself elongated again in the same step
+  void elongateTerminal() {
+    ADcmContext c = (ADcmContext)ctx;
+    ADcmTree comp = (ADcmTree)parent;  // preceding compartment
+
+    // Elongation of preceding compartment
+    while (comp.parent != null) {  
+      float newL = comp.length + deltL;
       // adjust concentration to new length
-      Cbr = Cbr * length / newL;
-      length = newL;
-      pathlength = parent.pathlength + length;
-      ltree.pathlength = pathlength + ltree.length;
-      if (length >= 2*dL) {  // add new compartment
-        pathlength = parent.pathlength + dL;
-        Tree gcone = ltree;
-        ltree = new ADcmTree(this,key,order,diam,length-dL,Cbr,erate);
-        ltree.ltree = gcone;
-        gcone.parent = ltree;
-        length = dL;
-      };
+      c.cb.cur[comp.slot] = c.cb.cur[comp.slot] * comp.length / newL;
+      comp.length = newL;
+      comp.pathlength = comp.parent.pathlength + comp.length;
+      pathlength = comp.pathlength + length;
+      if (comp.length < 2*c.dL) break;
+      // add new compartment
+      comp.pathlength = comp.parent.pathlength + c.dL;
+      comp.ltree = new ADcmTree(comp,comp.key,comp.order,comp.diam,comp.length-c.dL,c.cb.cur[comp.slot],comp.erate);
+      comp.ltree.ltree = this;
+      parent = comp.ltree;
+      comp.length = c.dL;
+      comp = (ADcmTree)parent;  // elongates in turn
     };
 
-    // Calculate elongation if growth cone (terminal node)
-    if (parent != null && ltree == null && rtree == null) {
-      deltL = ((rCV*crate*erate) + crate) * dt;
-      }
-    else {  // search for terminals to elongate
-      if (ltree != null) ltree.elongateTree(t);
-      if (rtree != null) rtree.elongateTree(t);
-    };
+    // Calculate elongation of growth cone
+    deltL = ((c.rCV*c.crate*erate) + c.crate) * c.dt;
     
   }
 
 
 
   // Set segment diameters
+  //   - only nodes on the paths from new branch points to the
+  //     soma change diameter (using cached terminal counts)
   public void diamTree(double t) {
-
-    if ((ltree == null && rtree == null) || ebp == 0) 
-      return;  // diameter already set
-    else {
-      if (ltree != null) ltree.diamTree(t);
-      if (rtree != null) rtree.diamTree(t);
-      if (parent != null) { // do not adjust soma!
-        float diamp = diam;
-        diam = termdiam*(float)Math.pow((double)countTerminals(),(double)(1/ebp));
-        Cbr = Cbr * ((diamp*diamp) / (diam*diam));
-        Cbrp = Cbrp * ((diamp*diamp) / (diam*diam));
+    ADcmTree p;
+
+    if (ctx.ebp != 0) {
+      for (int i = 0; i < ctx.nbrpts; i++) {
+        p = (ADcmTree)ctx.brpts[i];
+        while (p.parent != null) {  // do not adjust soma!
+          p.setDiam();
+          p = (ADcmTree)p.parent;
+        };
       };
     };
-      
+    ctx.nbrpts = 0;
 
   }
 
 
+  // Set diameter from number of terminals (branch power rule)
+  void setDiam() {
+    float diamp = diam;
 
-  // Update previous concentration values
-  public void updateTree(double t) {
+    diam = ctx.termdiam*(float)Math.pow((double)nterm,(double)(1/ctx.ebp));
+    ((ADcmContext)ctx).cb.scale(slot, (diamp*diamp) / (diam*diam));
 
-    Cbrp = Cbr;
-    if (ltree != null) ltree.updateTree(t); 
-    if (rtree != null) rtree.updateTree(t); 
-      
   }
 
 
 
-  // Get parameter value
-  public float getValue(String vname) {
+  // Update previous concentration values
+  //   - buffers are swapped; every compartment is recalculated
+  //     at the next step
+  public void updateTree(double t) {
+
+    ((ADcmContext)ctx).cb.swap();
+
+  }
+
 
-    if (vname.equals("Cbr"))
-      return Cbr;
-    else if (vname.equals("Cbrp"))
-      return Cbrp;
-    else if (vname.equals("pathlength"))
-      return pathlength;
-    else if (vname.equals("deltL"))
-      return deltL;
-    else
-      return 0f;
 
+  // Model variables
+  //   - between time steps the latest concentrations are the
+  //     previous values of the next step
+  static final TreeVar[] VARS = {
+    new TreeVar("Cbr") {
+      public float get(Tree t) { return ((ADcmContext)t.ctx).cb.prev[t.slot]; }
+    },
+    new TreeVar("Cbrp") {
+      public float get(Tree t) { return ((ADcmContext)t.ctx).cb.prev[t.slot]; }
+    },
+    new TreeVar("pathlength") {
+      public float get(Tree t) { return t.pathlength; }
+    },
+    new TreeVar("deltL") {
+      public float get(Tree t) { return ((ADcmTree)t).deltL; }
+    }};
+
+  public TreeVar[] variables() {
+    return VARS;
   }
 
 
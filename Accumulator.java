@@ -0,0 +1,246 @@
+/* Accumulator.java
+
+Running statistics of a stream of values
+  - count, mean and variance (Welford's method, one pass and
+    numerically stable), minimum and maximum
+  - histogram with a fixed number of bins on a grid of width a
+    power of 2; the bins slide along the grid to follow the data
+    and their width doubles (neighbouring bins are combined)
+    whenever the data no longer fit, so the histogram always
+    covers all the values
+  - approximate quantiles are interpolated from the histogram
+    (to within one bin width)
+  - memory is fixed whatever the number of values
+  - accumulators of separate parts of the data (e.g. from
+    different threads) can be merged: count, mean, variance,
+    minimum and maximum are then exactly those of all the data
+    (Chan et al. pairwise update), histograms are combined at the
+    coarser bin width
+
+Version 1.0 18-10-26
+*/
+
+
+public class Accumulator {
+
+  public static final int NBINS = 128;  // default number of bins
+
+  private long n = 0;  // number of values
+  private double mean = 0;  // running mean
+  private double m2 = 0;  // sum of squared deviations from mean
+  private double min = 0, max = 0;
+
+  private long[] bins;  // histogram counts
+  private double width = 1.0/1024;  // bin width (a power of 2)
+  private long base = 0;  // grid index of first bin
+  private long kmin = Long.MAX_VALUE, kmax = Long.MIN_VALUE;  // grid indices of occupied bins
+
+
+
+  // Constructor with default number of histogram bins
+  public Accumulator() {
+    this(NBINS);
+  }
+
+
+  // Constructor with given (even) number of histogram bins
+  public Accumulator(int nbins) {
+    bins = new long[nbins];
+  }
+
+
+  // Add a value
+  public void add(double x) {
+    double d;
+    long k;
+
+    n++;
+    d = x - mean;
+    mean += d / n;
+    m2 += d * (x - mean);
+    if (n == 1 || x < min) min = x;
+    if (n == 1 || x > max) max = x;
+
+    if (Double.isNaN(x) || Double.isInfinite(x)) return;  // not binned
+    fit(x, x);
+    k = grid(x);
+    bins[(int)(k-base)]++;
+    if (k < kmin) kmin = k;
+    if (k > kmax) kmax = k;
+  }
+
+
+  // Add all values of accumulator o (with same number of bins)
+  public void merge(Accumulator o) {
+    long nt = n + o.n;
+    double d = o.mean - mean;
+    long k;
+
+    if (o.bins.length != bins.length)
+      throw new IllegalArgumentException("Histograms differ in number of bins");
+    if (o.n == 0) return;
+    if (n == 0 || o.min < min) min = o.min;
+    if (n == 0 || o.max > max) max = o.max;
+    mean += d * ((double)o.n / (double)nt);
+    m2 += o.m2 + d * d * ((double)n * (double)o.n / (double)nt);
+    n = nt;
+
+    if (o.kmin > o.kmax) return;  // nothing binned
+    while (width < o.width) coarsen();
+    fit(o.kmin*o.width, o.kmax*o.width);
+    for (int i = 0; i < o.bins.length; i++)
+      if (o.bins[i] > 0) {
+        k = grid((o.base+i)*o.width);  // bin edges are on both grids
+        bins[(int)(k-base)] += o.bins[i];
+        if (k < kmin) kmin = k;
+        if (k > kmax) kmax = k;
+      };
+  }
+
+
+  // Histogram housekeeping
+
+  // Grid index of value x
+  private long grid(double x) {
+    return (long)Math.floor(x/width);
+  }
+
+
+  // Make histogram cover values xlo to xhi as well as its contents
+  private void fit(double xlo, double xhi) {
+    long lo, hi;
+
+    while (true) {
+      lo = grid(xlo);
+      hi = grid(xhi);
+      if (kmin <= kmax) {  // not empty
+        lo = Math.min(lo, kmin);
+        hi = Math.max(hi, kmax);
+      };
+      if (hi - lo < bins.length) break;
+      coarsen();
+    };
+    if (kmin > kmax)  // empty: centre on new values
+      base = lo - (bins.length - (hi-lo)) / 2;
+    else if (lo < base)
+      rebase(lo);
+    else if (hi >= base + bins.length)
+      rebase(hi - bins.length + 1);
+  }
+
+
+  // Double the bin width (combine neighbouring bins)
+  private void coarsen() {
+    long[] nb = new long[bins.length];
+    long nbase = Math.floorDiv(base, 2L);
+
+    for (int i = 0; i < bins.length; i++)
+      if (bins[i] > 0)
+        nb[(int)(Math.floorDiv(base+i, 2L) - nbase)] += bins[i];
+    bins = nb;
+    base = nbase;
+    if (kmin <= kmax) {
+      kmin = Math.floorDiv(kmin, 2L);
+      kmax = Math.floorDiv(kmax, 2L);
+    };
+    width *= 2;
+  }
+
+
+  // Move first bin to grid index nbase (contents must still fit)
+  private void rebase(long nbase) {
+    long[] nb = new long[bins.length];
+
+    for (long k = kmin; k <= kmax; k++)
+      nb[(int)(k-nbase)] = bins[(int)(k-base)];
+    bins = nb;
+    base = nbase;
+  }
+
+
+  // Remove all values
+  public void clear() {
+    n = 0;
+    mean = 0;
+    m2 = 0;
+    min = 0;
+    max = 0;
+    for (int i = 0; i < bins.length; i++) bins[i] = 0;
+    width = 1.0/1024;
+    base = 0;
+    kmin = Long.MAX_VALUE;
+    kmax = Long.MIN_VALUE;
+  }
+
+
+
+  // Results
+
+  // Number of values
+  public long count() {
+    return n;
+  }
+
+
+  // Mean
+  public double mean() {
+    return mean;
+  }
+
+
+  // Variance (unbiased estimate)
+  public double var() {
+    if (n < 2) return 0;
+    return m2 / (double)(n-1);
+  }
+
+
+  // Standard deviation
+  public double std() {
+    return Math.sqrt(var());
+  }
+
+
+  // Smallest and largest values
+  public double min() {
+    return min;
+  }
+
+  public double max() {
+    return max;
+  }
+
+
+  // Histogram: start of first bin, bin width and counts
+  public double binStart() {
+    return base*width;
+  }
+
+  public double binWidth() {
+    return width;
+  }
+
+  public long[] bins() {
+    return bins;
+  }
+
+
+  // Approximate quantile q (0 <= q <= 1)
+  //   - values are taken as spread evenly through each bin
+  public double quantile(double q) {
+    double target, cum = 0, x;
+    long nb = 0;
+    int i;
+
+    for (i = 0; i < bins.length; i++) nb += bins[i];
+    if (nb == 0) return 0;
+    target = q*nb;
+    for (i = 0; i < bins.length-1 && cum + bins[i] < target; i++)
+      cum += bins[i];
+    x = width*(base + i + ((bins[i] > 0) ? (target-cum)/bins[i] : 0));
+    if (x < min) x = min;
+    if (x > max) x = max;
+    return x;
+  }
+
+}
@@ -0,0 +1,82 @@
+/* BESContext.java
+
+Parameters and state of a BESTL tree (see BESTree and BESEventTree)
+  - keeps the number of terminals of each centrifugal order, so the
+    order normalisation factor is found without searching the tree
+
+Version 1.0 18-10-26
+*/
+
+
+public class BESContext extends SimContext {
+
+  float B=1.0f;  // overall branching probability
+  float Kbr=1.0f;  // scale factor for branching probability
+  float E;  // dependence on number of terminals
+  float S;  // dependence on centrifugal order
+  float pbr=1.0f;  // terminal-dependent prob. factor
+  float Cnorm=1.0f;  // order-dependent norm. factor
+
+  // Terminals by centrifugal order
+  int[] ocount = new int[8];  // number of terminals
+  float[] ow = new float[8];  // order weight 2^(-S*order)
+
+
+  // Constructor with parameter values from data entry
+  public BESContext(String[][] par, float dt) {
+    super(dt);
+
+    B = param(par, 0);
+    E = param(par, 1);
+    S = param(par, 2);
+    Vbr = param(par, 3);
+    Vel = param(par, 4);
+    rCV = param(par, 5);
+    Tbstop = param(par, 6);
+    somaL = param(par, 7);
+    somadiam = param(par, 8);
+    termdiam = param(par, 9);
+    ebp = param(par, 10);
+
+    Kbr = B / (float)Tbstop;
+  }
+
+
+  // Weight of centrifugal order o
+  float oweight(int o) {
+    if (o >= ow.length) grow(o);
+    if (ow[o] == 0)
+      ow[o] = (float)Math.pow(2.0d, -(double)S*(double)o);
+    return ow[o];
+  }
+
+
+  // Change number of terminals of order o by n
+  void countOrder(int o, int n) {
+    if (o >= ocount.length) grow(o);
+    ocount[o] += n;
+  }
+
+
+  // Sum of order weights over all terminals
+  float orderSum() {
+    float w = 0f;
+
+    for (int o = 0; o < ocount.length; o++)
+      if (ocount[o] > 0) w += ocount[o]*oweight(o);
+    return w;
+  }
+
+
+  // Make room for orders up to o
+  void grow(int o) {
+    int[] nc = new int[2*o];
+    float[] nw = new float[2*o];
+
+    System.arraycopy(ocount, 0, nc, 0, ocount.length);
+    System.arraycopy(ow, 0, nw, 0, ow.length);
+    ocount = nc;
+    ow = nw;
+  }
+
+}
@@ -0,0 +1,208 @@
+/* BESEventTree.java
+
+Event-driven (Gillespie) simulation of van Pelt's BESTL model
+  - same model and parameters as BESTree
+  - between branching events the branching rates depend only on
+    the number of terminals n and their centrifugal orders:
+      - total rate is Kbr*n^(1-E)
+      - terminal j branches with probability proportional to
+        2^(-S*order(j))
+    so the time to the next event is drawn from an exponential
+    distribution and the terminal to branch is drawn directly
+  - terminals are kept in lists by centrifugal order for fast
+    selection
+  - terminal lengths are calculated from their time of creation
+    and elongation rates only when needed (see syncTree)
+  - cost is proportional to the number of branching events, not
+    to the number of time steps and terminals
+  - event times and branching weights use StrictMath, so a seeded
+    run gives the same tree on every Java version and platform
+
+Version 1.0 18-10-26
+*/
+
+import java.lang.Math;
+
+
+public class BESEventTree extends BESTree {
+
+  // Event state (held by the soma)
+  double tnow=0;  // time up to which tree has grown
+  double tnext;  // time of next branching event
+  float[] tbirth = new float[16];  // creation time (by terminal index)
+
+  // Terminals by centrifugal order
+  Tree[][] olist = new Tree[8][];
+  int[] ocount = new int[8];
+  int[] opos = new int[16];  // position in order list (by terminal index)
+  double[] oweight = new double[8];  // 2^(-S*order)
+
+  boolean synced=true;  // Tree nodes are up to date
+
+
+
+  // Constructor for cell body (with first neurite)
+  //   - c holds the parameters and state of this tree
+  public BESEventTree(BESContext c, int key, int order) {
+    super(c, key, order);  // BESTL soma and first neurite
+
+    addOrder(ltree);
+    tnext = nextEvent(0);
+  }
+
+
+
+  // Growth
+
+  // Grow tree up to time t
+  //   - all branching events before t (and Tbstop) are carried out
+  public void stepTree(double t) {
+    BESContext c = (BESContext)ctx;
+    double tb = Math.min(t, c.Tbstop);
+
+    while (tnext <= tb) {
+      branchEvent(tnext);
+      tnext = nextEvent(tnext);
+    };
+    tnow = t;
+
+    // Check for elongation phase
+    if (t > c.Tbstop) c.crate = c.Vel;  // elongation phase
+    else c.crate = c.Vbr;  // branching phase
+    synced = false;
+
+  }
+
+
+  // Time of next branching event after time t
+  double nextEvent(double t) {
+    BESContext c = (BESContext)ctx;
+    double rate = c.Kbr*StrictMath.pow((double)c.nterms, 1.0-(double)c.E);
+
+    return t - StrictMath.log(1.0-c.ranp.nextDouble())/rate;
+  }
+
+
+  // Branch a randomly chosen terminal at time te
+  void branchEvent(double te) {
+    BESContext c = (BESContext)ctx;
+    BESTree tn;
+    double w = 0;
+    int o;
+
+    // choose order, then terminal of that order
+    for (o = 0; o < ocount.length; o++)
+      w += ocount[o]*oweight[o];
+    w = w*c.ranp.nextDouble();
+    for (o = 0; o < ocount.length; o++) {
+      w -= ocount[o]*oweight[o];
+      if (w < 0) break;
+    };
+    if (o == ocount.length)  // rounding error: take highest order
+      for (o = ocount.length-1; ocount[o] == 0; o--);
+    tn = (BESTree)olist[o][(int)(ocount[o]*c.ranp.nextDouble())];
+
+    // final length of branching terminal
+    tn.length = growth(tn, te);
+    removeOrder(tn);
+
+    // new branches start with zero length
+    tn.ltree = new BESTree(tn, c.nextKey(), tn.order+1);
+    tn.rtree = new BESTree(tn, c.nextKey(), tn.order+1);
+    c.replaceTerminal(tn, tn.ltree);
+    c.addTerminal(tn.rtree);
+    tn.incTerminals();
+    if (c.nterms > tbirth.length) {  // terminal arrays full
+      float[] nb = new float[2*tbirth.length];
+      int[] np = new int[2*opos.length];
+      System.arraycopy(tbirth, 0, nb, 0, tbirth.length);
+      System.arraycopy(opos, 0, np, 0, opos.length);
+      tbirth = nb;
+      opos = np;
+    };
+    tbirth[tn.ltree.tindex] = (float)te;
+    tbirth[tn.rtree.tindex] = (float)te;
+    addOrder(tn.ltree);
+    addOrder(tn.rtree);
+
+  }
+
+
+  // Length of terminal at time t
+  //   - elongation rate changes at Tbstop
+  float growth(BESTree tn, double t) {
+    BESContext c = (BESContext)ctx;
+    double t0 = tbirth[tn.tindex];
+    float rbr = (c.rCV*c.Vbr*tn.erate) + c.Vbr;  // branching phase rate
+    float rel = (c.rCV*c.Vel*tn.erate) + c.Vel;  // elongation phase rate
+
+    if (t <= c.Tbstop)
+      return rbr*(float)(t-t0);
+    else
+      return (rbr*(float)(c.Tbstop-t0)) + (rel*(float)(t-c.Tbstop));
+  }
+
+
+  // Add terminal to list for its order
+  void addOrder(Tree tn) {
+    int o = tn.order;
+
+    if (o >= ocount.length) {  // new orders
+      Tree[][] nl = new Tree[2*o][];
+      int[] nc = new int[2*o];
+      double[] nw = new double[2*o];
+      System.arraycopy(olist, 0, nl, 0, olist.length);
+      System.arraycopy(ocount, 0, nc, 0, ocount.length);
+      System.arraycopy(oweight, 0, nw, 0, oweight.length);
+      olist = nl;
+      ocount = nc;
+      oweight = nw;
+    };
+    if (olist[o] == null) olist[o] = new Tree[8];
+    if (ocount[o] == olist[o].length) {  // list full
+      Tree[] nl = new Tree[2*ocount[o]];
+      System.arraycopy(olist[o], 0, nl, 0, ocount[o]);
+      olist[o] = nl;
+    };
+    oweight[o] = StrictMath.pow(2.0d, -(double)((BESContext)ctx).S*(double)o);
+    opos[tn.tindex] = ocount[o];
+    olist[o][ocount[o]++] = tn;
+  }
+
+
+  // Remove terminal from list for its order
+  //   - last terminal of the list takes its place
+  void removeOrder(Tree tn) {
+    int o = tn.order;
+    int i = opos[tn.tindex];
+    Tree last = olist[o][--ocount[o]];
+
+    olist[o][i] = last;
+    opos[last.tindex] = i;
+    olist[o][ocount[o]] = null;
+  }
+
+
+
+  // Bring terminal lengths and values up to date
+  public void syncTree() {
+    BESContext c = (BESContext)ctx;
+    BESTree tn;
+    double w = 0;
+
+    if (synced) return;
+    for (int o = 0; o < ocount.length; o++)
+      w += ocount[o]*oweight[o];
+    c.Cnorm = (float)w;
+    c.pbr = ((float)c.nterms / c.Cnorm) / (float)StrictMath.pow((double)c.nterms, (double)c.E);
+    for (int i = 0; i < c.nterms; i++) {
+      tn = (BESTree)c.terms[i];
+      tn.length = growth(tn, tnow);
+      tn.Cbr = c.pbr*(float)StrictMath.pow(2.0d,-(double)c.S*(double)tn.order);
+    };
+    synced = true;
+
+  }
+
+
+}
@@ -1,36 +1,18 @@
 /* BESTree.java
 
 Implements van Pelt's BESTL model
+  - terminal lengths are kept as length at a reference time and
+    calculated when needed (see curLength and syncTree)
 
 Version 1.0 BPG 4-3-03
 */
 
 import java.lang.Math;
-import java.util.Random;
 
 
 // New tree class
 public class BESTree extends Tree {
 
-  // New class variables
-  static float B=1.0f;  // overall branching probability
-  static float Kbr=1.0f;  // scale factor for branching probability
-  static float pbr=1.0f;  // terminal-dependent prob. factor
-  static float Cnorm=1.0f;  // order-dependent norm. factor
-  static float E;  // dependence on number of terminals
-  static float S;  // dependence on centrifugal order
-  static float dt=1.0f;  // time step
-  static float dL=1.0f;  // length step
-  static float somaL=1.0f;  // soma length
-  static float somadiam=1.0f;  // soma diameter
-  static float termdiam=1.0f;  // terminal node diameter
-  static float ebp=1.0f;  // branch power for diameter
-  static float Vel=1.0f;  // elongation phase growth rate
-  static float Vbr=1.0f;  // branching phase growth rate
-  static float crate=1.0f;	// mean elongation rate
-  static float rCV=1.0f;  // coefficient of variation of rates
-  static double Tbstop=1.0;  // branching stop time
-
   // data entry
   public static String DEparams[][] = {
     {"Branching probability (B):", "3.85", "3.85"},
@@ -46,163 +28,201 @@ public class BESTree extends Tree {
     {"Branch power (e):", "1.6", "1.6"}};
   public static final int Nparams=11;
 
-  // random number generators for branching and elongation
-  static Random ranG=null;  // Gaussian random number
-  static Random ranp=null;  // Uniform random number
- 
   // Instance variables
   float Cbr;	// conc. of branch-producing chemical
   float Cbrp;	// value at previous time step
   float erate; // variation in elongation rate
+  float lref;  // terminal length at time tref
+  double tref;  // reference time for terminal length
 
 
   // Constructor for cell body
-  public BESTree(int key, int order) {
-    super(null, key, order, somaL, somadiam);  // basic tree constructor
-    
-    ranp = new Random();  // randomness for branching
-    ranG = new Random();  // randomness for elongation rates
+  //   - c holds the parameters and state of this tree
+  public BESTree(BESContext c, int key, int order) {
+    super(null, key, order, c.somaL, c.somadiam);  // basic tree constructor
     
-    updateParams();  // get parameter values from data entry
+    ctx = c;  // own parameters, random streams and branch keys
     Cbr = 1.0f;
-    crate = Vbr;  // branching phase mean elongation rate
+    ctx.crate = ctx.Vbr;  // branching phase mean elongation rate
     
     // add first neurite segment as left branch
     this.ltree = new BESTree(this, key+1, Cbr);
-    Tree.brkey = key+2;  // reset branch key
+    ctx.brkey = key+2;  // reset branch key
+    ctx.addTerminal(ltree);
+    c.countOrder(0, 1);
   }
 
 
   // Constructor for first neurite branch
   public BESTree(Tree parent, int key, float Cinit) {
-    super(parent, key, 0, 0f, termdiam);  // basic tree constructor
+    super(parent, key, 0, 0f, parent.ctx.termdiam);  // basic tree constructor
     Cbr = Cinit;  // no branching chemical initially
-    erate = (float)ranG.nextGaussian();  // new variation
+    lref = length;
+    tref = ctx.telong;
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
   }
 
 
   // Constructor for new branch
   public BESTree(Tree parent, int key, int order) {
-    super(parent, key, order, 0f, termdiam);  // basic tree constructor
+    super(parent, key, order, 0f, parent.ctx.termdiam);  // basic tree constructor
     Cbr = 0f;  // no branching initially
-    erate = (float)ranG.nextGaussian();  // new variation
+    lref = length;
+    tref = ctx.telong;
+    erate = (float)ctx.ranG.nextGaussian();  // new variation
     // must have positive growth
-    while((rCV*crate*erate) + crate <= 0)
-      erate = (float)ranG.nextGaussian();  // new variation
+    while((ctx.rCV*ctx.crate*erate) + ctx.crate <= 0)
+      erate = (float)ctx.ranG.nextGaussian();  // new variation
   }
 
 
 
-  // Get parameter values from data entry (class method)
-  public static void updateParams() {
+  // Randomly branch all terminal nodes
+  //   - terminals are taken from the tree's terminal list
+  public void branchTree(double t) {
+    BESContext c = (BESContext)ctx;
+    int totTerms;
 
-    B = Float.valueOf(DEparams[0][2]).floatValue();
-    E = Float.valueOf(DEparams[1][2]).floatValue();
-    S = Float.valueOf(DEparams[2][2]).floatValue();
-    Vbr = Float.valueOf(DEparams[3][2]).floatValue();
-    Vel = Float.valueOf(DEparams[4][2]).floatValue();
-    rCV = Float.valueOf(DEparams[5][2]).floatValue();
-    Tbstop = Double.valueOf(DEparams[6][2]).floatValue();
-    somaL = Float.valueOf(DEparams[7][2]).floatValue();
-    somadiam = Float.valueOf(DEparams[8][2]).floatValue();
-    termdiam = Float.valueOf(DEparams[9][2]).floatValue();
-    ebp = Float.valueOf(DEparams[10][2]).floatValue();
+    // Calculate global probability component
+    totTerms = c.nterms;
+    // assume Cnorm previously set by updateTree()
+    c.Cnorm = (float)totTerms / c.Cnorm;
+    c.pbr = c.Cnorm / (float)Math.pow((double)totTerms, (double)c.E);
+    
+    // Randomly branch terminal nodes (during branch phase only)
+    //   - new terminals are added at the end of the list and
+    //     are not considered until the next time step
+    if (t <= c.Tbstop) {
+      for (int i = 0; i < totTerms; i++)
+        ((BESTree)c.terms[i]).branchTerminal();
+    };
+      
+  }
 
-    Kbr = B / (float)Tbstop;
-    pbr = 1f;
-    Cnorm = 1f;
 
+  // Advance tree by one time step
+  //   - fused step if the tree's context asks for it
+  public void stepTree(double t) {
+    if (ctx.fused)
+      fusedStep(t);
+    else
+      super.stepTree(t);
   }
 
 
-  // Set time step (class method)
-  public static void setTimeStep(float dt) {
-    BESTree.dt = dt;
-  }
+  // Advance tree by one time step with a single pass over the terminals
+  //   - the order normalisation is taken from the number of
+  //     terminals of each order, so no separate update pass is
+  //     needed
+  public void fusedStep(double t) {
+    BESContext c = (BESContext)ctx;
+    int totTerms = c.nterms;
 
+    c.Cnorm = (float)totTerms / c.orderSum();
+    c.pbr = c.Cnorm / (float)Math.pow((double)totTerms, (double)c.E);
+    if (t <= c.Tbstop) {
+      for (int i = 0; i < totTerms; i++)
+        ((BESTree)c.terms[i]).branchTerminal();
+    };
+    elongateTree(t);
 
+  }
 
-  // Randomly branch all terminal nodes
-  public void branchTree(double t) {
-    int totTerms;
 
-    // Calculate global probability component, if root node
-    if (parent == null) {  // root node
-      totTerms = countTerminals();
-      // assume Cnorm previously set by updateTree()
-      Cnorm = (float)totTerms / Cnorm;
-      pbr = Cnorm / (float)Math.pow((double)totTerms, (double)E);
-    };
-    
-    // Randomly branch terminal node (during branch phase only)
-    if (t <= Tbstop && ltree == null && rtree == null) {
-      // randomly branch terminal node
-      Cbr = pbr*(float)Math.pow(2.0d,-(double)S*(double)order);
-      if (Cbr*Kbr*dt >= ranp.nextDouble()) {
-        this.ltree = new BESTree(this, Tree.brkey++, order+1);
-        this.rtree = new BESTree(this, Tree.brkey++, order+1);
-      };
-    }
-    else {  // search for terminals to branch
-      if (ltree != null) ltree.branchTree(t);
-      if (rtree != null) rtree.branchTree(t);
+  // Randomly branch this terminal node
+  void branchTerminal() {
+    BESContext c = (BESContext)ctx;
+
+    Cbr = c.pbr*c.oweight(order);
+    if (Cbr*c.Kbr*c.dt >= c.ranp.nextDouble()) {
+      length = curLength();  // final length
+      this.ltree = new BESTree(this, c.nextKey(), order+1);
+      this.rtree = new BESTree(this, c.nextKey(), order+1);
+      c.replaceTerminal(this, ltree);
+      c.addTerminal(rtree);
+      c.countOrder(order, -1);
+      c.countOrder(order+1, 2);
+      incTerminals();
     };
-      
+
   }
 
 
 
   // Elongate terminal nodes
+  //   - terminals grow at a constant rate within each phase, so
+  //     only the elongation time is recorded
+  //   - terminal lengths are rebased when the rate changes
   public void elongateTree(double t) {
+    BESTree tn;
+
+    // Check for elongation phase
+    if (t > ctx.Tbstop && ctx.crate != ctx.Vel) {  // start of elongation phase
+      for (int i = 0; i < ctx.nterms; i++) {
+        tn = (BESTree)ctx.terms[i];
+        tn.lref = tn.curLength();
+        tn.tref = ctx.telong;
+      };
+      ctx.crate = ctx.Vel;
+    }
+    else if (t <= ctx.Tbstop)
+      ctx.crate = ctx.Vbr;  // branching phase
+    ctx.telong = t;
+    
+  }
 
-    // Check for elongation phase (soma only)
-    if (parent == null) {
-      if (t > Tbstop) crate = Vel;  // elongation phase
-      else crate = Vbr;  // branching phase
-    };
 
-    // Elongate terminal nodes
-    if (ltree == null && rtree == null) {
-      length = length + (((rCV*crate*erate) + crate) * dt);
-    }
-    else {  // search for terminals to elongate
-      if (ltree != null) ltree.elongateTree(t);
-      if (rtree != null) rtree.elongateTree(t);
+  // Current length of this terminal
+  float curLength() {
+    return lref + (((ctx.rCV*ctx.crate*erate) + ctx.crate) * (float)(ctx.telong-tref));
+  }
+
+
+  // Set terminal lengths to their current values
+  public void syncTree() {
+    BESTree tn;
+
+    for (int i = 0; i < ctx.nterms; i++) {
+      tn = (BESTree)ctx.terms[i];
+      tn.length = tn.curLength();
     };
-    
+
+  }
+
+
+  // No branching after Tbstop
+  public boolean passive(double t) {
+    return t > ctx.Tbstop;
   }
 
 
 
   // Update normalisation constant
   public void updateTree(double t) {
+    BESContext c = (BESContext)ctx;
 
-    if (parent == null)
-      Cnorm = 0f;
-    if (ltree == null && rtree == null)
-      Cnorm += (float)Math.pow(2.0d, -(double)S*(double)order);
-    else {
-      if (ltree != null) ltree.updateTree(t); 
-      if (rtree != null) rtree.updateTree(t);
-    };
+    c.Cnorm = 0f;
+    for (int i = 0; i < c.nterms; i++)
+      c.Cnorm += c.oweight(c.terms[i].order);
       
   }
 
 
 
-  // Get parameter value
-  public float getValue(String vname) {
-
-    if (vname.equals("Cbr"))
-      return Cbr;
-    else if (vname.equals("Cbrp"))
-      return Cbrp;
-    else
-      return 0f;
+  // Model variables
+  static final TreeVar[] VARS = {
+    new TreeVar("Cbr") {
+      public float get(Tree t) { return ((BESTree)t).Cbr; }
+    },
+    new TreeVar("Cbrp") {
+      public float get(Tree t) { return ((BESTree)t).Cbrp; }
+    }};
 
+  public TreeVar[] variables() {
+    return VARS;
   }
 
 
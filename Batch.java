@@ -0,0 +1,496 @@
+/* Batch.java
+
+Headless batch runner (command line)
+  - runs the simulations of one or more parameter files, as saved
+    by the Neurite Save button, without any windows:
+      java Batch [-t threads] [-o stem] file.par ...
+  - trees are grown concurrently (see Ensemble) and, if the file
+    asks for statistics to be stored, the data files of
+    Neurite.storeTreeData are written using the statistics file
+    stem of each parameter file (or the stem given by -o, followed
+    by the file number if there are several files)
+  - a file that cannot be read or run is reported and skipped
+  - no AWT classes are used, so no display is needed and start up
+    is quick
+  - parameter file reading, model construction and data file
+    writing are shared with Neurite
+
+Version 1.0 18-10-26
+*/
+
+import java.io.*;
+
+
+public class Batch {
+
+  // Simulation parameters (as in Neurite)
+  int tree_type = Neurite.BES_type;  // (constants only: Neurite is not loaded)
+  int nTrees = 1;
+  float dt = 1;
+  double Tstop = 0;
+  int sSflag = 0;
+  int sTflag = 0;
+  double Tterm = 1;
+  int adapt = 0;
+  float dttol = 0.001f;
+  int fusedfl = 1;
+  int streamfl = 0;
+  String fSstem = "test";
+  long seed = 0;  // master random seed (0 = time-based)
+  String SIM_data[][] = newSimData();
+  String GRAPHIC_data[][] = newGraphicData();  // display (see Movie)
+
+  // Results
+  Tree[] branches;  // grown trees (null if streamed)
+  Morphometrics morph;  // per tree data (null if streamed)
+  MorphSummary summary;  // statistics of all trees
+
+
+
+  // Run every parameter file given
+  public static void main(String args[]) {
+    Ensemble ens;
+    Batch b;
+    String stem = null;
+    int nthreads = Runtime.getRuntime().availableProcessors();
+    int first, nfiles, failed = 0;
+    long t0;
+
+    for (first = 0; first < args.length && args[first].startsWith("-"); first += 2) {
+      if (first+1 >= args.length) usage();
+      if (args[first].equals("-t"))
+        nthreads = Integer.parseInt(args[first+1]);
+      else if (args[first].equals("-o"))
+        stem = args[first+1];
+      else
+        usage();
+    };
+    nfiles = args.length - first;
+    if (nfiles < 1) usage();
+
+    ens = new Ensemble(nthreads);
+    for (int i = first; i < args.length; i++) {
+      t0 = System.currentTimeMillis();
+      b = new Batch();
+      try {
+        b.load(args[i]);
+        if (stem != null)
+          b.fSstem = (nfiles == 1) ? stem : stem+(i-first+1);
+        b.run(ens);
+        if (b.sSflag == 1) b.store(b.fSstem);
+      }
+      catch(IOException e) {
+        System.err.println(args[i]+": "+e.getMessage());
+        failed++;
+        continue;
+      }
+      catch(NumberFormatException e) {
+        System.err.println(args[i]+": bad parameter value ("+e.getMessage()+")");
+        failed++;
+        continue;
+      }
+      catch(RuntimeException e) {  // failure in the simulation itself
+        System.err.println(args[i]+": "+e);
+        failed++;
+        continue;
+      };
+      System.out.println(args[i]+": "+b.nTrees+" trees, degree "
+        +(float)b.summary.terms.mean()+" ("+(float)b.summary.terms.std()+"), "
+        +(System.currentTimeMillis()-t0)+" ms"+((b.sSflag == 1) ? " -> "+b.fSstem : ""));
+    };
+    if (failed > 0) System.exit(1);
+  }
+
+
+  private static void usage() {
+    System.err.println("Usage: java Batch [-t threads] [-o stem] file.par ...");
+    System.exit(2);
+  }
+
+
+
+  // Parameter files
+
+  // Table of simulation parameters (label, default, value)
+  static String[][] newSimData() {
+    return new String[][] {
+      {"Number of trees:", "1", "1"},
+      {"Time step (dt):", "1", "1"},
+      {"Simulation time (Tstop):", "200", "200"},
+      {"Store statistics (1=yes):", "0", "0"},
+      {"Statistics file stem:", "AD", "AD"},
+      {"Store concentrations (1=yes):", "0", "0"},
+      {"Concentration file stem:", "AD", "AD"},
+      {"Store lengths (1=yes):", "0", "0"},
+      {"Length file stem:", "AD", "AD"},
+      {"Store no. terminals over time (1=yes):", "0", "0"},
+      {"Storage interval (time):", "1", "1"},
+      {"Adaptive time step (0=no,1=stable,2=error guess):", "0", "0"},
+      {"Time step error tolerance:", "0.001", "0.001"},
+      {"Fused time step, BESTL only (0=no,1=yes):", "1", "1"},
+      {"Streaming statistics (1=yes):", "0", "0"},
+      {"Random seed (0=time):", "0", "0"}};
+  }
+  static final int Nsim = 16;
+
+
+  // Table of display parameters (label, default, value)
+  static String[][] newGraphicData() {
+    return new String[][] {
+      {"Display width:", "600", "600"},
+      {"Display height:", "350", "350"},
+      {"Display parameter:", "Cbr", "Cbr"},
+      {"Maximum display value:", "1.0", "1.0"},
+      {"Display interval (steps):", "1", "1"},
+      {"Display delay (msecs):", "0", "0"},
+      {"Maximum path length (um):", "100", "100"},
+      {"Initial branch angle (deg):", "20", "20"},
+      {"Angle scaling factor:", "-0.4", "-0.4"},
+      {"Soma scaling factor:", "1.0", "1.0"},
+      {"Dendrite scaling factor:", "5.0", "5.0"}};
+  }
+  static final int Ngraphic = 11;
+
+
+  // Set the drawing parameters in Tree from display parameters
+  static void setDrawing(String[][] gdata) {
+    Tree.drawdel = (long)Integer.parseInt(gdata[5][2]);
+    Tree.maxLength = Float.valueOf(gdata[6][2]).floatValue();
+    Tree.bangle = Float.valueOf(gdata[7][2]).floatValue();
+    Tree.badel = Float.valueOf(gdata[8][2]).floatValue();
+    Tree.scsoma = Float.valueOf(gdata[9][2]).floatValue();
+    Tree.scdend = Float.valueOf(gdata[10][2]).floatValue();
+  }
+
+
+  // Model parameter table of a tree type
+  static String[][] modelParams(int type) {
+    switch (type) {
+      case Neurite.AD_type:
+        return ADTree.DEparams;
+      case Neurite.ADcm_type:
+        return ADcmTree.DEparams;
+      default:
+        return BESTree.DEparams;
+    }
+  }
+
+  static int modelNparams(int type) {
+    switch (type) {
+      case Neurite.AD_type:
+        return ADTree.Nparams;
+      case Neurite.ADcm_type:
+        return ADcmTree.Nparams;
+      default:
+        return BESTree.Nparams;
+    }
+  }
+
+
+  // Copy of a parameter table (values can then be changed)
+  static String[][] copyParams(String[][] par) {
+    String[][] cp = new String[par.length][];
+
+    for (int i = 0; i < par.length; i++) cp[i] = par[i].clone();
+    return cp;
+  }
+
+
+  // Index of a parameter in table par, given by its symbol (the
+  // name in brackets in its label, e.g. Kbr), its whole label or
+  // its number (from 1)
+  //   - returns -1 if not found
+  static int findParam(String[][] par, int npar, String name) {
+    String lab;
+
+    try {
+      int i = Integer.parseInt(name) - 1;
+      return (i >= 0 && i < npar) ? i : -1;
+    }
+    catch(NumberFormatException e) {};
+    for (int i = 0; i < npar; i++) {
+      lab = par[i][0];
+      if (lab.indexOf("("+name+")") >= 0 || lab.equals(name) || lab.equals(name+":"))
+        return i;
+    };
+    return -1;
+  }
+
+
+  // Read version, model type and model parameters from the start
+  // of a parameter file
+  //   - returns the tree type
+  //   - type -1 (no model chosen yet when saved) is the default BES;
+  //     any other model type that is not known is an error
+  static int readModel(BufferedReader r)
+      throws IOException {
+    int type;
+
+    readLine(r);  // version
+    readLine(r);  // blank line
+    readLine(r);  // section heading
+    readLine(r);  // model name
+    type = Integer.parseInt(readLine(r).trim());   // model type number
+    if (type == -1) type = Neurite.BES_type;  // saved before a model was chosen
+    if (type != Neurite.BES_type && type != Neurite.AD_type
+        && type != Neurite.ADcm_type && type != Neurite.BESE_type)
+      throw new IOException("unknown model type "+type);
+    readParams(r, modelParams(type), modelNparams(type));
+    return type;
+  }
+
+
+  // Read a section of parameters (label and value lines) from a file
+  //   - section ends at a blank line (or end of file)
+  //   - parameters missing from older files are set to their defaults
+  //   - a label without a value means the file is cut short
+  static void readParams(BufferedReader r, String[][] pdata, int ndata)
+      throws IOException {
+    int i = 0;
+    String currl;
+
+    currl = r.readLine();  // label
+    while (currl != null && currl.trim().length() > 0) {
+      currl = readLine(r);  // value
+      if (i < ndata) pdata[i++][2] = currl.trim();
+      currl = r.readLine();
+    };
+    for (; i < ndata; i++)  // not in file
+      pdata[i][2] = pdata[i][1];
+  }
+
+
+  // Next line of a parameter file that must be there
+  static String readLine(BufferedReader r)
+      throws IOException {
+    String currl = r.readLine();
+
+    if (currl == null) throw new IOException("truncated file");
+    return currl;
+  }
+
+
+  // Load a parameter file
+  //   - display parameters are read into GRAPHIC_data but only used
+  //     for drawing (see Movie)
+  public void load(String fname)
+      throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(fname)));
+
+    try {
+      tree_type = readModel(r);
+      readLine(r);  // section heading
+      readParams(r, SIM_data, Nsim);
+      readLine(r);  // section heading
+      readParams(r, GRAPHIC_data, Ngraphic);
+    }
+    finally {
+      r.close();
+    };
+    nTrees = Integer.parseInt(SIM_data[0][2]);
+    dt = Float.valueOf(SIM_data[1][2]).floatValue();
+    Tstop = Double.valueOf(SIM_data[2][2]).floatValue();
+    sSflag = Integer.parseInt(SIM_data[3][2]);
+    fSstem = SIM_data[4][2];
+    sTflag = Integer.parseInt(SIM_data[9][2]);
+    Tterm = Double.valueOf(SIM_data[10][2]).floatValue();
+    adapt = Integer.parseInt(SIM_data[11][2]);
+    dttol = Float.valueOf(SIM_data[12][2]).floatValue();
+    fusedfl = Integer.parseInt(SIM_data[13][2]);
+    streamfl = Integer.parseInt(SIM_data[14][2]);
+    seed = Long.parseLong(SIM_data[15][2]);
+  }
+
+
+
+  // Simulation
+
+  // New tree (cell body and first neurite) i of a run
+  //   - parameter values are from table par (laid out as the
+  //     model's DEparams, e.g. a point of a parameter sweep); each
+  //     tree has its own copy
+  //   - random streams come from master seed and i (time-based if
+  //     seed is 0)
+  static Tree newTree(int type, String[][] par, float dt, int adapt, float dttol, int fusedfl, long seed, int i) {
+    SimContext c = newContext(type, par, dt);
+
+    if (seed != 0) c.setSeed(seed, i);
+    return newTree(type, c, adapt, dttol, fusedfl);
+  }
+
+
+  // New context of a model with parameter values from table par
+  static SimContext newContext(int type, String[][] par, float dt) {
+    switch (type) {
+     case Neurite.BES_type:
+     case Neurite.BESE_type:
+       return new BESContext(par, dt);
+     case Neurite.AD_type:
+       return new ADContext(par, dt);
+     case Neurite.ADcm_type:
+       return new ADcmContext(par, dt);
+     default:
+       throw new IllegalArgumentException("unknown model type "+type);
+    }
+  }
+
+
+  // New tree of a model with context c (made by newContext)
+  static Tree newTree(int type, SimContext c, int adapt, float dttol, int fusedfl) {
+    Tree br;
+
+    switch (type) {
+     case Neurite.BES_type:
+       br = new BESTree((BESContext)c, 0, 0);
+       break;
+     case Neurite.AD_type:
+       br = new ADTree((ADContext)c, 0, 0);
+       break;
+     case Neurite.ADcm_type:
+       br = new ADcmTree((ADcmContext)c, 0, 0);
+       break;
+     case Neurite.BESE_type:
+       br = new BESEventTree((BESContext)c, 0, 0);
+       break;
+     default:
+       throw new IllegalArgumentException("unknown model type "+type);
+    };
+    br.ctx.setStepping(adapt, dttol);
+    br.ctx.fused = (fusedfl == 1);
+    return br;
+  }
+
+
+  Tree newTree(int i) {
+    return newTree(tree_type, modelParams(tree_type), dt, adapt, dttol, fusedfl, seed, i);
+  }
+
+
+  // Number of storage times for no. of terminals (0 if not stored)
+  int termTimes() {
+    return (sTflag == 1) ? (int)(Tstop/Tterm)+1 : 0;
+  }
+
+
+  // Grow all trees to Tstop and calculate their statistics
+  public void run(Ensemble ens) {
+    int[][] timeTerm = null;
+    SimContext c;
+
+    summary = new MorphSummary(termTimes());
+    if (streamfl == 1 && nTrees > 1) {  // trees summarised and dropped
+      branches = null;
+      morph = null;
+      ens.growTrees(new TreeSource() {
+          public Tree newTree(int i) { return Batch.this.newTree(i); }
+        }, nTrees, Tstop, summary, Tterm);
+      return;
+    };
+
+    branches = new Tree[nTrees];
+    for (int i = 0; i < nTrees; i++) branches[i] = newTree(i);
+    if (sTflag == 1) {
+      timeTerm = new int[nTrees][termTimes()];
+      for (int i = 0; i < nTrees; i++) timeTerm[i][0] = 1;
+    };
+    ens.growTrees(branches, Tstop, timeTerm, Tterm);
+
+    morph = new Morphometrics(nTrees);
+    for (int i = 0; i < nTrees; i++) {
+      branches[i].syncTree();  // tree nodes up to date
+      morph.add(branches[i]);
+      c = branches[i].ctx;
+      summary.nsteps += c.nsteps;
+      if (c.dtlo < summary.dtlo) summary.dtlo = c.dtlo;
+      if (c.dthi > summary.dthi) summary.dthi = c.dthi;
+      if (timeTerm != null)
+        for (int it = 0; it < timeTerm[i].length; it++)
+          summary.termT[it] += timeTerm[i][it];
+    };
+    summary.add(morph);
+  }
+
+
+
+  // Data files
+
+  // Store tree data in files (as Neurite.storeTreeData)
+  public void store(String fstem)
+      throws IOException {
+    float[] mtimeTerm;
+
+    storeInfo(fstem+".inf");
+    if (morph == null)  // streamed trees: summary only
+      summary.store(fstem+"_sum.dat");
+    else {
+      storeArray(fstem+"_deg.dat", morph.terms, morph.ntrees);
+      storeArray(fstem+"_co.dat", morph.centOrder, morph.nterms);
+      storeArray(fstem+"_asym.dat", morph.asym, morph.ntrees);
+      storeArray(fstem+"_totL.dat", morph.totLength, morph.ntrees);
+      storeArray(fstem+"_termL.dat", morph.termLength, morph.nterms);
+      storeArray(fstem+"_intL.dat", morph.intLength, morph.nints);
+      storeArray(fstem+"_pathL.dat", morph.pathLength, morph.nterms);
+      if (adapt != SimContext.FIXED)
+        storeSteps(fstem+"_dt.dat", branches, nTrees);
+    };
+    if (summary.termT != null) {
+      mtimeTerm = new float[summary.termT.length];
+      for (int it = 0; it < mtimeTerm.length; it++)
+        mtimeTerm[it] = (float)(summary.termT[it] / (double)nTrees);
+      storeArray(fstem+"_termT.dat", mtimeTerm, mtimeTerm.length);
+    };
+  }
+
+
+  // Store model parameters and results in a file
+  void storeInfo(String fname)
+      throws IOException {
+    String[][] pinfo = modelParams(tree_type);
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+
+    for (int i = 0; i < modelNparams(tree_type); i++)
+      pout.println(pinfo[i][0]+" "+pinfo[i][2]);
+    pout.println("\nResults:");
+    pout.println(summary.results(nTrees, adapt != SimContext.FIXED));
+    pout.close();
+  }
+
+
+  // Store step size history of every tree in a file
+  //   - one line per change: tree index, time, new step size
+  static void storeSteps(String fname, Tree[] branches, int ntrees)
+      throws IOException {
+    SimContext c;
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+
+    for (int i = 0; i < ntrees; i++) {
+      c = branches[i].ctx;
+      for (int j = 0; j < c.nhist; j++)
+        pout.println(i+" "+c.histT[j]+" "+c.histDt[j]);
+    };
+    pout.close();
+  }
+
+
+  // Store an array of float data in a file
+  static void storeArray(String fname, float[] adata, int ndata)
+      throws IOException {
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+
+    for (int i = 0; i < ndata; i++)
+      pout.println(adata[i]);
+    pout.close();
+  }
+
+
+  // Store an array of int data in a file
+  static void storeArray(String fname, int[] adata, int ndata)
+      throws IOException {
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+
+    for (int i = 0; i < ndata; i++)
+      pout.println(adata[i]);
+    pout.close();
+  }
+
+}
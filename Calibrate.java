@@ -0,0 +1,553 @@
+/* Calibrate.java
+
+Fitting model parameters to target morphometrics (command line)
+  - finds values of chosen model parameters (DEparams entries)
+    that make simulated trees match target trees:
+      java Calibrate [options] file.par target name=lo:hi ...
+    parameters are named as for Sweep; other settings come from
+    the parameter file
+  - target is either a summary file (as <stem>_sum.dat) or the
+    stem of data files as stored by Neurite or Batch
+    (<stem>_deg.dat, _asym.dat, _co.dat, _totL.dat, _pathL.dat,
+    _termL.dat, _intL.dat; those present are used)
+  - distance between simulated and target distributions: for each
+    measure the differences of mean, standard deviation and 5 to
+    95% quantiles, scaled by the target standard deviation; root
+    mean square over the measures
+  - methods:
+      nm   Nelder-Mead simplex (default); the reflection, expansion
+           and both contraction points of each step are simulated
+           together
+      abc  approximate Bayesian computation by rejection: candidates
+           from a Sobol sequence over the ranges, the closest are
+           accepted
+  - candidates are simulated together on a shared pool (see Sweep
+    and Ensemble)
+  - common random numbers: tree i of every candidate uses the same
+    random streams, so differences between candidates are due to
+    the parameters, not to chance
+  - early rejection: every candidate first grows a part of its
+    trees; those already much worse than the current worst simplex
+    point (nm) or acceptance distance (abc) are not finished
+  - options:
+      -t threads   worker threads (default all processors)
+      -n trees     trees per candidate (default from parameter file)
+      -method m    nm or abc
+      -iter N      maximum Nelder-Mead steps (default 100)
+      -samples N   abc candidates (default 256)
+      -accept N    abc candidates accepted (default samples/10)
+      -first n     trees grown before early rejection (default n/4)
+      -reject f    early rejection if distance > f times bound
+                   (default 1.5, 0 for none)
+      -measures m  comma separated measures to fit (default all of
+                   the target's degree, asymmetry, centorder,
+                   totlength, pathlength, termlength, intlength)
+      -seed s      seed of common random numbers (default from
+                   parameter file, or 1 if that is 0)
+      -o file      results (default <stem>_fit.dat)
+
+Version 1.0 18-10-26
+*/
+
+import java.io.*;
+
+
+public class Calibrate {
+
+  public static final int NM = 0;
+  public static final int ABC = 1;
+
+  // Measures that can be fitted, and their data file suffixes
+  static final String[] MEASURES = {"degree", "asymmetry", "centorder",
+    "totlength", "pathlength", "termlength", "intlength"};
+  static final String[] SUFFIX = {"_deg.dat", "_asym.dat", "_co.dat",
+    "_totL.dat", "_pathL.dat", "_termL.dat", "_intL.dat"};
+  static final double[] Q = {0.05, 0.25, 0.5, 0.75, 0.95};  // quantiles compared
+
+  Sweep sw;  // model, parameter ranges and candidate simulation
+  Ensemble ens;
+  int ntrees, nfirst;  // trees per candidate, before early rejection
+  double reject = 1.5;  // early rejection factor (0 for none)
+
+  // Target
+  int nm = 0;  // measures used
+  String[] mname = new String[MEASURES.length];
+  double[] tmean = new double[MEASURES.length];
+  double[] tsd = new double[MEASURES.length];
+  double[][] tq = new double[MEASURES.length][Q.length];
+
+  // Work done
+  int ncand = 0;  // candidates simulated
+  int nreject = 0;  // candidates rejected early
+  long ngrown = 0;  // trees grown
+
+  // Results
+  double[][] x;  // best point (nm) or accepted points (abc), scaled 0-1
+  double[] fx;  // their distances
+  int nx = 0;
+  StringBuffer log = new StringBuffer();  // progress (nm)
+
+
+
+  // Run a calibration from the command line
+  public static void main(String args[]) {
+    Calibrate cal;
+    String fout = null, measures = null;
+    int nthreads = Runtime.getRuntime().availableProcessors();
+    int ntrees = 0, nfirst = 0, method = NM, iter = 100, samples = 256, accept = 0, i;
+    double reject = 1.5;
+    long seed = 0, t0;
+
+    for (i = 0; i < args.length && args[i].startsWith("-") && args[i].indexOf('=') < 0; i += 2) {
+      if (i+1 >= args.length) usage();
+      if (args[i].equals("-t"))
+        nthreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-n"))
+        ntrees = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-method")) {
+        if (args[i+1].equals("nm")) method = NM;
+        else if (args[i+1].equals("abc")) method = ABC;
+        else usage();
+      }
+      else if (args[i].equals("-iter"))
+        iter = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-samples"))
+        samples = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-accept"))
+        accept = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-first"))
+        nfirst = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-reject"))
+        reject = Double.parseDouble(args[i+1]);
+      else if (args[i].equals("-measures"))
+        measures = args[i+1];
+      else if (args[i].equals("-seed"))
+        seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-o"))
+        fout = args[i+1];
+      else
+        usage();
+    };
+    if (i >= args.length-2) usage();
+
+    t0 = System.currentTimeMillis();
+    try {
+      cal = new Calibrate(args[i], new Ensemble(nthreads));
+      cal.readTarget(args[i+1], measures);
+      for (i += 2; i < args.length; i++) {
+        cal.sw.addVar(args[i]);
+        if (cal.sw.vlist[cal.sw.nvars-1] != null)
+          throw new IllegalArgumentException("Calibrate needs a range lo:hi: "+args[i]);
+      };
+      if (ntrees > 0) cal.ntrees = ntrees;
+      cal.nfirst = (nfirst > 0) ? Math.min(nfirst, cal.ntrees) : Math.max(1, cal.ntrees/4);
+      cal.reject = reject;
+      cal.sw.seeded = true;
+      if (seed != 0) cal.sw.seed = seed;
+      else if (cal.sw.seed == 0) cal.sw.seed = 1;
+      if (method == ABC)
+        cal.abc(samples, (accept > 0) ? accept : Math.max(1, samples/10));
+      else
+        cal.nelderMead(iter);
+      if (fout == null) fout = cal.sw.base.fSstem+"_fit.dat";
+      cal.store(fout, method);
+    }
+    catch(IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    catch(IllegalArgumentException e) {  // also bad numbers
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    };
+    System.out.println("distance "+(float)cal.fx[0]+", "+cal.ncand+" candidates ("
+      +cal.nreject+" rejected early), "+cal.ngrown+" trees, "
+      +(System.currentTimeMillis()-t0)+" ms -> "+fout);
+  }
+
+
+  private static void usage() {
+    System.err.println("Usage: java Calibrate [-t threads] [-n trees] [-method nm|abc] [-iter N]"
+      +" [-samples N] [-accept N] [-first n] [-reject f] [-measures m,...] [-seed s] [-o file]"
+      +" file.par target name=lo:hi ...");
+    System.exit(2);
+  }
+
+
+
+  // Constructor with base parameter file
+  public Calibrate(String fname, Ensemble ens)
+      throws IOException {
+    sw = new Sweep(fname);
+    this.ens = ens;
+    ntrees = sw.base.nTrees;
+  }
+
+
+
+  // Target
+
+  // Read target: summary file (name ending _sum.dat) or stem of
+  // data files
+  //   - measures (may be null for all) lists the measures to fit
+  public void readTarget(String target, String measures)
+      throws IOException {
+    if (target.endsWith("_sum.dat"))
+      readSummary(target, measures);
+    else
+      for (int m = 0; m < MEASURES.length; m++)
+        if (wanted(measures, MEASURES[m]) && new File(target+SUFFIX[m]).exists())
+          addTarget(MEASURES[m], readValues(target+SUFFIX[m]));
+    if (nm == 0) throw new IOException("No target data in "+target);
+  }
+
+
+  private static boolean wanted(String measures, String name) {
+    if (measures == null) return true;
+    return (","+measures+",").indexOf(","+name+",") >= 0;
+  }
+
+
+  // Read summary lines: measure n mean std min q05 q25 q50 q75 q95 max
+  //   - only the first line of each measure is used
+  private void readSummary(String fname, String measures)
+      throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(fname)));
+    String currl;
+    String[] f;
+
+    try {
+      while ((currl = r.readLine()) != null) {
+        f = currl.trim().split("\\s+");
+        if (f.length < 11 || f[0].startsWith("#")) continue;
+        for (int m = 0; m < MEASURES.length; m++)
+          if (f[0].equals(MEASURES[m]) && wanted(measures, f[0]) && !haveTarget(f[0])) {
+            mname[nm] = f[0];
+            tmean[nm] = Double.parseDouble(f[2]);
+            tsd[nm] = Double.parseDouble(f[3]);
+            for (int k = 0; k < Q.length; k++) tq[nm][k] = Double.parseDouble(f[5+k]);
+            nm++;
+          };
+      };
+    }
+    finally {
+      r.close();
+    };
+  }
+
+
+  private boolean haveTarget(String name) {
+    for (int m = 0; m < nm; m++)
+      if (mname[m].equals(name)) return true;
+    return false;
+  }
+
+
+  // Read a data file of one value per line
+  private static Accumulator readValues(String fname)
+      throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(fname)));
+    Accumulator a = new Accumulator();
+    String currl;
+
+    try {
+      while ((currl = r.readLine()) != null)
+        if (currl.trim().length() > 0) a.add(Double.parseDouble(currl.trim()));
+    }
+    finally {
+      r.close();
+    };
+    return a;
+  }
+
+
+  // Add target measure from its values
+  //   - quantiles are estimated as for simulated values
+  private void addTarget(String name, Accumulator a) {
+    mname[nm] = name;
+    tmean[nm] = a.mean();
+    tsd[nm] = a.std();
+    for (int k = 0; k < Q.length; k++) tq[nm][k] = a.quantile(Q[k]);
+    nm++;
+  }
+
+
+  // Distance between simulated trees s and target
+  public double distance(MorphSummary s) {
+    Accumulator a;
+    double d = 0, dq, sc;
+
+    for (int m = 0; m < nm; m++) {
+      a = s.measure(mname[m]);
+      sc = (tsd[m] > 0) ? tsd[m] : Math.max(Math.abs(tmean[m]), 1e-6);
+      dq = 0;
+      for (int k = 0; k < Q.length; k++)
+        dq += (a.quantile(Q[k]) - tq[m][k]) * (a.quantile(Q[k]) - tq[m][k]);
+      d += ((a.mean()-tmean[m]) * (a.mean()-tmean[m])
+          + (a.std()-tsd[m]) * (a.std()-tsd[m])
+          + dq/Q.length) / (3*sc*sc);
+    };
+    return Math.sqrt(d / nm);
+  }
+
+
+
+  // Candidate evaluation
+
+  // Distances of n candidates u (parameters scaled 0-1)
+  //   - all first grow nfirst trees; those with distance above
+  //     reject*bound then stop, the rest grow all their trees
+  public double[] evaluate(double[][] u, int n, double bound) {
+    double[] d = new double[n];
+    MorphSummary[] part;
+    int[] keep = new int[n];
+    int nkeep = 0, first = ntrees;
+
+    if (reject > 0 && nfirst < ntrees) first = nfirst;
+    setPoints(u, n, null, n);
+    sw.run(ens, 0, first);
+    part = sw.results;
+    ngrown += (long)n * first;
+    ncand += n;
+    for (int p = 0; p < n; p++) {
+      d[p] = distance(part[p]);
+      if (first == ntrees || d[p] <= reject*bound)
+        keep[nkeep++] = p;
+      else
+        nreject++;
+    };
+
+    if (first < ntrees && nkeep > 0) {  // finish candidates kept
+      setPoints(u, n, keep, nkeep);
+      sw.run(ens, first, ntrees-first);
+      ngrown += (long)nkeep * (ntrees-first);
+      for (int k = 0; k < nkeep; k++) {
+        part[keep[k]].merge(sw.results[k]);
+        d[keep[k]] = distance(part[keep[k]]);
+      };
+    };
+    return d;
+  }
+
+
+  // Set sweep points from candidates (those listed in keep, or all)
+  private void setPoints(double[][] u, int n, int[] keep, int nkeep) {
+    int p;
+
+    sw.npoints = nkeep;
+    sw.points = new double[nkeep][sw.nvars];
+    for (int k = 0; k < nkeep; k++) {
+      p = (keep == null) ? k : keep[k];
+      for (int j = 0; j < sw.nvars; j++)
+        sw.points[k][j] = sw.vlo[j] + (sw.vhi[j]-sw.vlo[j]) * u[p][j];
+    };
+  }
+
+
+
+  // Nelder-Mead simplex
+
+  // Minimise distance from base parameter values (within ranges)
+  //   - stops after maxiter steps or when the simplex has shrunk to
+  //     0.1% of the ranges
+  public void nelderMead(int maxiter) {
+    int k = sw.nvars, iw, ib, is;
+    double[][] s = new double[k+1][k];  // simplex
+    double[] fs, fc;
+    double[][] c4 = new double[4][k];  // reflection, expansion, contractions
+    double[] cen = new double[k];
+    double v;
+
+    // initial simplex: base values and a step of 10% along each range
+    for (int j = 0; j < k; j++) {
+      v = (Double.parseDouble(sw.par[sw.vindex[j]][2]) - sw.vlo[j]) / (sw.vhi[j]-sw.vlo[j]);
+      s[0][j] = clamp(v);
+    };
+    for (int i = 1; i <= k; i++) {
+      s[i] = s[0].clone();
+      s[i][i-1] += (s[0][i-1] <= 0.9) ? 0.1 : -0.1;
+    };
+    fs = evaluate(s, k+1, Double.POSITIVE_INFINITY);
+
+    for (int it = 0; it < maxiter; it++) {
+      // best, worst and second worst points
+      ib = 0;
+      iw = 0;
+      for (int i = 1; i <= k; i++) {
+        if (fs[i] < fs[ib]) ib = i;
+        if (fs[i] > fs[iw]) iw = i;
+      };
+      is = ib;
+      for (int i = 0; i <= k; i++)
+        if (i != iw && fs[i] > fs[is]) is = i;
+      log.append("# step "+it+" distance "+(float)fs[ib]+point(s[ib])+"\n");
+      if (size(s, ib) < 0.001) break;
+
+      // centroid of all but worst, and candidate points
+      for (int j = 0; j < k; j++) {
+        cen[j] = 0;
+        for (int i = 0; i <= k; i++) if (i != iw) cen[j] += s[i][j];
+        cen[j] /= k;
+        c4[0][j] = clamp(cen[j] + (cen[j]-s[iw][j]));  // reflection
+        c4[1][j] = clamp(cen[j] + 2*(cen[j]-s[iw][j]));  // expansion
+        c4[2][j] = clamp(cen[j] + 0.5*(cen[j]-s[iw][j]));  // outside contraction
+        c4[3][j] = clamp(cen[j] - 0.5*(cen[j]-s[iw][j]));  // inside contraction
+      };
+      fc = evaluate(c4, 4, fs[iw]);
+
+      if (fc[0] < fs[ib])  // better than best: try expansion
+        replace(s, fs, iw, (fc[1] < fc[0]) ? c4[1] : c4[0], Math.min(fc[0], fc[1]));
+      else if (fc[0] < fs[is])  // better than second worst
+        replace(s, fs, iw, c4[0], fc[0]);
+      else if (fc[0] < fs[iw] && fc[2] <= fc[0])  // outside contraction
+        replace(s, fs, iw, c4[2], fc[2]);
+      else if (fc[0] >= fs[iw] && fc[3] < fs[iw])  // inside contraction
+        replace(s, fs, iw, c4[3], fc[3]);
+      else {  // shrink towards best
+        double[][] sh = new double[k][];
+        double[] fsh;
+        int n = 0;
+
+        for (int i = 0; i <= k; i++)
+          if (i != ib) {
+            for (int j = 0; j < k; j++) s[i][j] = s[ib][j] + 0.5*(s[i][j]-s[ib][j]);
+            sh[n++] = s[i];
+          };
+        fsh = evaluate(sh, k, Double.POSITIVE_INFINITY);
+        n = 0;
+        for (int i = 0; i <= k; i++)
+          if (i != ib) fs[i] = fsh[n++];
+      };
+    };
+
+    ib = 0;
+    for (int i = 1; i <= k; i++) if (fs[i] < fs[ib]) ib = i;
+    x = new double[][] {s[ib]};
+    fx = new double[] {fs[ib]};
+    nx = 1;
+  }
+
+
+  private static double clamp(double v) {
+    return (v < 0) ? 0 : (v > 1) ? 1 : v;
+  }
+
+
+  private static void replace(double[][] s, double[] fs, int i, double[] p, double f) {
+    s[i] = p.clone();
+    fs[i] = f;
+  }
+
+
+  // Largest distance (scaled) of a simplex point from point ib
+  private static double size(double[][] s, int ib) {
+    double m = 0;
+
+    for (int i = 0; i < s.length; i++)
+      for (int j = 0; j < s[i].length; j++)
+        m = Math.max(m, Math.abs(s[i][j]-s[ib][j]));
+    return m;
+  }
+
+
+
+  // Approximate Bayesian computation (rejection)
+
+  // Accept the naccept closest of nsamples candidates
+  //   - candidates are simulated in batches; once naccept have been
+  //     found, the largest accepted distance is the rejection bound
+  public void abc(int nsamples, int naccept) {
+    double[][] u = Sweep.sobolPoints(nsamples, sw.nvars);
+    int batch = Math.max(16, 4*ens.getThreads());
+    double[][] bu;
+    double[] d;
+    double bound = Double.POSITIVE_INFINITY;
+    int n, i;
+
+    x = new double[naccept][];
+    fx = new double[naccept];
+    nx = 0;
+    for (int b = 0; b < nsamples; b += batch) {
+      n = Math.min(batch, nsamples-b);
+      bu = new double[n][];
+      System.arraycopy(u, b, bu, 0, n);
+      d = evaluate(bu, n, bound);
+      for (int p = 0; p < n; p++) {  // keep accepted in order of distance
+        if (nx == naccept && d[p] >= fx[nx-1]) continue;
+        i = (nx < naccept) ? nx++ : nx-1;
+        while (i > 0 && fx[i-1] > d[p]) {
+          fx[i] = fx[i-1];
+          x[i] = x[i-1];
+          i--;
+        };
+        fx[i] = d[p];
+        x[i] = bu[p];
+      };
+      if (nx == naccept) bound = fx[nx-1];
+    };
+  }
+
+
+
+  // Results
+
+  // Parameter values of scaled point u as text
+  private String point(double[] u) {
+    StringBuffer sb = new StringBuffer();
+
+    for (int j = 0; j < sw.nvars; j++)
+      sb.append(" "+sw.vname[j]+"="+(float)(sw.vlo[j] + (sw.vhi[j]-sw.vlo[j])*u[j]));
+    return sb.toString();
+  }
+
+
+  // Store results
+  //   - nm: progress, then best parameter values (model labels)
+  //   - abc: mean and std of accepted values, then accepted points
+  //     (closest first)
+  public void store(String fname, int method)
+      throws IOException {
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+    double v, m, sd;
+    StringBuffer head = new StringBuffer("# rank");
+
+    pout.print("# target measures:");
+    for (int j = 0; j < nm; j++) pout.print(" "+mname[j]);
+    pout.println();
+    pout.println("# candidates "+ncand+", rejected early "+nreject+", trees grown "+ngrown);
+    if (method == NM) {
+      pout.print(log.toString());
+      pout.println("# best distance "+(float)fx[0]);
+      for (int j = 0; j < sw.nvars; j++)
+        pout.println(sw.par[sw.vindex[j]][0]+" "
+          +Sweep.format((float)(sw.vlo[j] + (sw.vhi[j]-sw.vlo[j])*x[0][j])));
+    }
+    else {
+      for (int j = 0; j < sw.nvars; j++) {
+        m = 0;
+        sd = 0;
+        for (int i = 0; i < nx; i++) {
+          v = sw.vlo[j] + (sw.vhi[j]-sw.vlo[j])*x[i][j];
+          m += v;
+          sd += v*v;
+        };
+        m /= nx;
+        sd = (nx > 1) ? Math.sqrt(Math.max(0, (sd - nx*m*m) / (nx-1))) : 0;
+        pout.println("# "+sw.vname[j]+" mean "+(float)m+" std "+(float)sd);
+        head.append(" "+sw.vname[j]);
+      };
+      head.append(" distance");
+      pout.println(head.toString());
+      for (int i = 0; i < nx; i++) {
+        pout.print(i);
+        for (int j = 0; j < sw.nvars; j++)
+          pout.print(" "+(float)(sw.vlo[j] + (sw.vhi[j]-sw.vlo[j])*x[i][j]));
+        pout.println(" "+(float)fx[i]);
+      };
+    };
+    pout.close();
+  }
+
+}
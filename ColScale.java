@@ -1,8 +1,11 @@
 /* ColScale.java
 
 Create a colour scale for data representation
+  - the colours are made once (palette), so drawing allocates
+    no colours
 
 BPG 24-11-99
+Version 1.1 18-10-26 (palette)
 */
 
 import java.awt.Color;
@@ -145,8 +148,21 @@ public final class ColScale extends Object {
 };
 
 
-  // Generate required colour
-  public static Color ColVal(float pval, float pmval) {
+  // Colours of scale
+  public static final int NCOL = maxCS + 1;  // number of colours
+  private static final Color[] palette = new Color[NCOL];
+  private static final int[] prgb = new int[NCOL];  // packed RGB
+  static {
+    for (int i = 0; i <= maxCS; i++) {
+      palette[i] = new Color(CSrgb[i][0],CSrgb[i][1],CSrgb[i][2]);
+      prgb[i] = palette[i].getRGB();
+    };
+  };
+
+
+
+  // Index of required colour
+  public static int ColIndex(float pval, float pmval) {
     int i;
 
     if (pval < pmval)
@@ -155,8 +171,26 @@ public final class ColScale extends Object {
       i = 0;
     else
       i = maxCS;
-    return(new Color(CSrgb[i][0],CSrgb[i][1],CSrgb[i][2]));
+    return (i < 0) ? 0 : i;
+
+  }
+
+
+  // Generate required colour
+  public static Color ColVal(float pval, float pmval) {
+    return palette[ColIndex(pval, pmval)];
+  }
+
+
+  // Colour with given index
+  public static Color ColAt(int i) {
+    return palette[i];
+  }
+
 
+  // Packed (A)RGB of colour with given index (for raster drawing)
+  public static int RGBAt(int i) {
+    return prgb[i];
   }
 
 
@@ -166,7 +200,7 @@ public final class ColScale extends Object {
 
     dx = dw / maxCS;
     for (i = 0; i <= maxCS; i++) {
-      g.setColor(new Color(CSrgb[i][0],CSrgb[i][1],CSrgb[i][2]));
+      g.setColor(palette[i]);
       g.drawLine(x0+(i*dx), y0, x0+((i+1)*dx), y0);
 //      g.drawLine(x0+(i*dx), y0+1, x0+((i+1)*dx), y0+1);
     };
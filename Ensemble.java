@@ -0,0 +1,282 @@
+/* Ensemble.java
+
+Grows an ensemble of independent trees concurrently
+  - trees are divided between the threads of a work-stealing
+    (fork/join) pool
+  - each tree owns its random streams and branch keys (SimContext),
+    so trees grown on different threads do not interfere
+  - grown trees are left in place for calculation of the
+    usual tree statistics, or (streaming) each tree is made when
+    it is started, added to a MorphSummary when finished and then
+    dropped, so memory does not grow with the number of trees
+  - each call to growTrees has its own stop flag (see StopFlag),
+    so calls made at the same time (e.g. by Sweep or Calibrate
+    sharing one ensemble) do not stop each other, and a stop asked
+    for before growth starts is not lost
+
+Version 1.0 18-10-26
+*/
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+
+public class Ensemble {
+
+  private ForkJoinPool pool;  // worker threads
+
+
+  // Constructor using all available processors
+  public Ensemble() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+
+  // Constructor with given number of threads
+  public Ensemble(int nthreads) {
+    pool = new ForkJoinPool(nthreads);
+  }
+
+
+  // Number of worker threads
+  public int getThreads() {
+    return pool.getParallelism();
+  }
+
+
+  // Grow all trees from time 0 to Tend
+  //   - timeTerm (may be null) records no. of terminals every Tterm
+  //   - returns false if growth was stopped
+  //   - each tree chooses its own time steps (see SimContext)
+  public boolean growTrees(Tree[] branches, double Tend, int[][] timeTerm, double Tterm) {
+    return growTrees(branches, Tend, timeTerm, Tterm, new StopFlag());
+  }
+
+  // As above, stopped when stop is set
+  public boolean growTrees(Tree[] branches, double Tend, int[][] timeTerm, double Tterm, StopFlag stop) {
+    pool.invoke(new GrowTask(this, stop, branches, 0, branches.length, Tend, timeTerm, Tterm));
+    return !stop.isSet();
+  }
+
+
+  // Grow ntrees trees made by src from time 0 to Tend, adding each
+  // finished tree to sum (streaming)
+  //   - no. of terminals is recorded every Tterm if sum keeps it
+  //   - each task summarises its own range of trees; the partial
+  //     summaries are merged in a fixed order, so results do not
+  //     depend on the number of threads
+  //   - returns false if growth was stopped
+  public boolean growTrees(TreeSource src, int ntrees, double Tend, MorphSummary sum, double Tterm) {
+    return growTrees(src, ntrees, Tend, sum, Tterm, new StopFlag());
+  }
+
+  // As above, stopped when stop is set
+  public boolean growTrees(TreeSource src, int ntrees, double Tend, MorphSummary sum, double Tterm, StopFlag stop) {
+    return growTrees(new TreeSource[] {src}, ntrees, Tend, new MorphSummary[] {sum}, Tterm, stop);
+  }
+
+
+  // Grow ntrees trees made by each source (e.g. each point of a
+  // parameter sweep), adding them to the summary of that source
+  //   - all (source, tree) pairs share the one pool, so all threads
+  //     are kept busy even with few trees per source
+  //   - trees of each source are split and merged as above, so
+  //     results do not depend on the number of threads
+  //   - returns false if growth was stopped
+  public boolean growTrees(TreeSource[] srcs, int ntrees, double Tend, MorphSummary[] sums, double Tterm) {
+    return growTrees(srcs, ntrees, Tend, sums, Tterm, new StopFlag());
+  }
+
+  // As above, stopped when stop is set
+  public boolean growTrees(TreeSource[] srcs, int ntrees, double Tend, MorphSummary[] sums, double Tterm, StopFlag stop) {
+    int grain = Math.max(1, ntrees / 64);  // trees per task (not per thread)
+
+    pool.invoke(new SourceTask(this, stop, srcs, sums, 0, srcs.length, ntrees, grain, Tend, Tterm));
+    return !stop.isSet();
+  }
+
+
+  // Grow tree i made by src and add it to sum
+  void streamTree(StopFlag stop, TreeSource src, int i, double Tend, MorphSummary sum, double Tterm) {
+    Tree br = src.newTree(i);
+    int[] tTerm = null;
+
+    if (sum.termT != null) {
+      tTerm = new int[sum.termT.length];
+      tTerm[0] = 1;
+    };
+    growTree(stop, br, Tend, tTerm, Tterm);
+    if (stop.isSet()) return;  // stopped: tree not complete
+    br.syncTree();
+    sum.add(br, tTerm);
+  }
+
+
+  // Grow a single tree from time 0 to Tend (unless stopped)
+  void growTree(StopFlag stop, Tree br, double Tend, int[] tTerm, double Tterm) {
+    double t = 0;
+    float dt;
+
+    while (!stop.isSet() && t < Tend) {
+      if (br.passive(t)) {  // only elongation left: jump to end
+        dt = (float)(Tend-t);
+        t = Tend;
+      }
+      else {
+        dt = br.ctx.nextStep(t);
+        t += (double)dt;   // update simulation time
+      };
+      br.stepTree(t);
+      if (tTerm != null)
+        recordTerminals(br, tTerm, t, dt, Tterm);
+    };
+
+  }
+
+
+  // Record no. of terminals at storage times passed in last step
+  //   - a storage time is passed at the step nearest to it
+  public static void recordTerminals(Tree br, int[] tTerm, double t, float dt, double Tterm) {
+    int it = (int)((t-0.5*dt)/Tterm);  // last storage time passed
+
+    while (it < (int)((t+0.5*dt)/Tterm) && it+1 < tTerm.length)
+      tTerm[++it] = br.countTerminals();
+  }
+
+}
+
+
+
+// Fork/join task growing a range of trees
+class GrowTask extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+  private Ensemble ens;
+  private StopFlag stop;
+  private Tree[] branches;
+  private int lo, hi;  // range of tree indices
+  private double Tend, Tterm;
+  private int[][] timeTerm;
+
+
+  public GrowTask(Ensemble ens, StopFlag stop, Tree[] branches, int lo, int hi, double Tend, int[][] timeTerm, double Tterm) {
+    this.ens = ens;
+    this.stop = stop;
+    this.branches = branches;
+    this.lo = lo;
+    this.hi = hi;
+    this.Tend = Tend;
+    this.timeTerm = timeTerm;
+    this.Tterm = Tterm;
+  }
+
+
+  protected void compute() {
+    if (hi - lo > 1) {  // split range so idle threads can steal half
+      int mid = (lo + hi) / 2;
+      invokeAll(new GrowTask(ens, stop, branches, lo, mid, Tend, timeTerm, Tterm),
+                new GrowTask(ens, stop, branches, mid, hi, Tend, timeTerm, Tterm));
+    }
+    else if (hi > lo)  // single tree
+      ens.growTree(stop, branches[lo], Tend, timeTerm == null ? null : timeTerm[lo], Tterm);
+  }
+
+}
+
+
+
+// Fork/join task growing and summarising a range of trees
+//   - ranges of up to grain trees are grown in turn by one thread
+//     into a summary of their own
+class StreamTask extends RecursiveTask<MorphSummary> {
+
+  private static final long serialVersionUID = 1L;
+  private Ensemble ens;
+  private StopFlag stop;
+  private TreeSource src;
+  private int lo, hi;  // range of tree indices
+  private int grain;  // largest range grown by one task
+  private double Tend, Tterm;
+  private int ntimes;  // storage times for no. of terminals
+
+
+  public StreamTask(Ensemble ens, StopFlag stop, TreeSource src, int lo, int hi, int grain, double Tend, int ntimes, double Tterm) {
+    this.ens = ens;
+    this.stop = stop;
+    this.src = src;
+    this.lo = lo;
+    this.hi = hi;
+    this.grain = grain;
+    this.Tend = Tend;
+    this.ntimes = ntimes;
+    this.Tterm = Tterm;
+  }
+
+
+  protected MorphSummary compute() {
+    MorphSummary sum;
+
+    if (hi - lo > grain) {  // split range so idle threads can steal half
+      int mid = (lo + hi) / 2;
+      StreamTask left = new StreamTask(ens, stop, src, lo, mid, grain, Tend, ntimes, Tterm);
+      StreamTask right = new StreamTask(ens, stop, src, mid, hi, grain, Tend, ntimes, Tterm);
+      right.fork();
+      sum = left.compute();
+      sum.merge(right.join());
+    }
+    else {  // grow range of trees
+      sum = new MorphSummary(ntimes);
+      for (int i = lo; i < hi; i++)
+        ens.streamTree(stop, src, i, Tend, sum, Tterm);
+    };
+    return sum;
+  }
+
+}
+
+
+
+// Fork/join task growing the trees of a range of sources
+class SourceTask extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+  private Ensemble ens;
+  private StopFlag stop;
+  private TreeSource[] srcs;
+  private MorphSummary[] sums;
+  private int lo, hi;  // range of source indices
+  private int ntrees, grain;  // trees per source, largest range per task
+  private double Tend, Tterm;
+
+
+  public SourceTask(Ensemble ens, StopFlag stop, TreeSource[] srcs, MorphSummary[] sums, int lo, int hi, int ntrees, int grain, double Tend, double Tterm) {
+    this.ens = ens;
+    this.stop = stop;
+    this.srcs = srcs;
+    this.sums = sums;
+    this.lo = lo;
+    this.hi = hi;
+    this.ntrees = ntrees;
+    this.grain = grain;
+    this.Tend = Tend;
+    this.Tterm = Tterm;
+  }
+
+
+  protected void compute() {
+    MorphSummary sum;
+
+    if (hi - lo > 1) {  // split range so idle threads can steal half
+      int mid = (lo + hi) / 2;
+      invokeAll(new SourceTask(ens, stop, srcs, sums, lo, mid, ntrees, grain, Tend, Tterm),
+                new SourceTask(ens, stop, srcs, sums, mid, hi, ntrees, grain, Tend, Tterm));
+    }
+    else if (hi > lo) {  // trees of single source
+      sum = sums[lo];
+      sum.merge(new StreamTask(ens, stop, srcs[lo], 0, ntrees, grain, Tend,
+        sum.termT == null ? 0 : sum.termT.length, Tterm).compute());
+    };
+  }
+
+}
@@ -0,0 +1,200 @@
+/* MorphSummary.java
+
+Summary statistics of an ensemble of trees, built one tree at
+a time
+  - each finished tree is measured (see Morphometrics) and its
+    values are added to running accumulators, after which the
+    tree itself is no longer needed
+  - memory does not grow with the number of trees or terminals
+  - gives the same means and standard deviations as the full
+    per-tree arrays of Neurite.calcTreeStats
+  - summaries of separate groups of trees (e.g. grown on
+    different threads) can be merged
+
+Version 1.0 18-10-26
+*/
+
+import java.io.*;
+
+
+public class MorphSummary {
+
+  // Per tree values
+  public Accumulator segments = new Accumulator();  // number of segments
+  public Accumulator terms = new Accumulator();  // degree
+  public Accumulator totLength = new Accumulator();  // total length
+  public Accumulator asym = new Accumulator();  // asymmetry index
+  public Accumulator maxOrder = new Accumulator();  // max. centrifugal order
+  public Accumulator maxPath = new Accumulator();  // max. path length
+
+  // Per terminal and per branch point values
+  public Accumulator centOrder = new Accumulator();  // centrifugal order
+  public Accumulator pathLength = new Accumulator();  // path length
+  public Accumulator termLength = new Accumulator();  // terminal length
+  public Accumulator intLength = new Accumulator();  // intermediate length
+
+  // No. of terminals over time (sum over trees, null if not kept)
+  public double[] termT;
+
+  // Time steps of all trees
+  public long nsteps = 0;
+  public float dtlo = Float.MAX_VALUE, dthi = 0;
+
+  private Morphometrics m = new Morphometrics(1);  // current tree
+
+
+
+  // Constructor with number of storage times for no. of terminals
+  // (0 if not kept)
+  public MorphSummary(int ntimes) {
+    if (ntimes > 0) termT = new double[ntimes];
+  }
+
+
+  // Number of trees added
+  public long count() {
+    return terms.count();
+  }
+
+
+  // Accumulator of a measure, by its name in store (null if none)
+  public Accumulator measure(String name) {
+    if (name.equals("degree")) return terms;
+    if (name.equals("segments")) return segments;
+    if (name.equals("asymmetry")) return asym;
+    if (name.equals("maxorder")) return maxOrder;
+    if (name.equals("totlength")) return totLength;
+    if (name.equals("maxpath")) return maxPath;
+    if (name.equals("centorder")) return centOrder;
+    if (name.equals("pathlength")) return pathLength;
+    if (name.equals("termlength")) return termLength;
+    if (name.equals("intlength")) return intLength;
+    return null;
+  }
+
+
+  // Add tree t (which must be up to date, see Tree.syncTree)
+  //   - tTerm (may be null) is its no. of terminals over time
+  public void add(Tree t, int[] tTerm) {
+    SimContext c = t.ctx;
+
+    m.clear();
+    m.add(t);
+    add(m);
+
+    if (termT != null && tTerm != null)
+      for (int i = 0; i < termT.length && i < tTerm.length; i++)
+        termT[i] += tTerm[i];
+
+    nsteps += c.nsteps;
+    if (c.dtlo < dtlo) dtlo = c.dtlo;
+    if (c.dthi > dthi) dthi = c.dthi;
+  }
+
+
+  // Add all trees measured in m
+  public void add(Morphometrics m) {
+    for (int i = 0; i < m.ntrees; i++) {
+      segments.add(m.segments[i]);
+      terms.add(m.terms[i]);
+      totLength.add(m.totLength[i]);
+      asym.add(m.asym[i]);
+      maxOrder.add(m.maxOrder[i]);
+      maxPath.add(m.maxPath[i]);
+    };
+    for (int i = 0; i < m.nterms; i++) {
+      centOrder.add(m.centOrder[i]);
+      pathLength.add(m.pathLength[i]);
+      termLength.add(m.termLength[i]);
+    };
+    for (int i = 0; i < m.nints; i++)
+      intLength.add(m.intLength[i]);
+  }
+
+
+  // Add all trees of summary s
+  public void merge(MorphSummary s) {
+    segments.merge(s.segments);
+    terms.merge(s.terms);
+    totLength.merge(s.totLength);
+    asym.merge(s.asym);
+    maxOrder.merge(s.maxOrder);
+    maxPath.merge(s.maxPath);
+    centOrder.merge(s.centOrder);
+    pathLength.merge(s.pathLength);
+    termLength.merge(s.termLength);
+    intLength.merge(s.intLength);
+
+    if (termT != null && s.termT != null)
+      for (int i = 0; i < termT.length && i < s.termT.length; i++)
+        termT[i] += s.termT[i];
+
+    nsteps += s.nsteps;
+    if (s.dtlo < dtlo) dtlo = s.dtlo;
+    if (s.dthi > dthi) dthi = s.dthi;
+  }
+
+
+  // Results as shown by Neurite and stored in .inf files
+  //   - ntrees: number of trees (for mean no. of time steps)
+  //   - steps: include time step totals (adaptive steps)
+  public String results(int ntrees, boolean steps) {
+    StringBuffer s = new StringBuffer();
+
+    s.append("Degree: mean=" + (float)terms.mean() + ", std=" + (float)terms.std());
+    s.append("\nAsymmetry: mean=" + (float)asym.mean() + ", std=" + (float)asym.std());
+    s.append("\nCentrifugal order: mean=" + (float)centOrder.mean() + ", std=" + (float)centOrder.std());
+    s.append("\nTotal length: mean=" + (float)totLength.mean() + ", std=" + (float)totLength.std());
+    s.append("\nPath length: m=" + (float)pathLength.mean() + ", std=" + (float)pathLength.std());
+    s.append("\nIntermediate length: m=" + (float)intLength.mean() + ", std=" + (float)intLength.std());
+    s.append("\nTerminal length: m=" + (float)termLength.mean() + ", std=" + (float)termLength.std());
+    if (steps) s.append("\n" + stepResults(ntrees));
+    return s.toString();
+  }
+
+
+  // Time step totals: mean no. of steps per tree, smallest and
+  // largest step
+  public String stepResults(int ntrees) {
+    return "Time steps: mean no.=" + ((ntrees > 0) ? nsteps/ntrees : 0)
+      + ", min dt=" + dtlo + ", max dt=" + dthi;
+  }
+
+
+
+  // Store summary of every measure in a file
+  //   - one line per measure: name, count, mean, std, min,
+  //     5%, 25%, 50%, 75% and 95% quantiles, max
+  public void store(String fname)
+      throws IOException {
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+
+    pout.println("# measure n mean std min q05 q25 q50 q75 q95 max");
+    print(pout, "");
+    pout.close();
+  }
+
+
+  // Print summary lines (as store), each starting with prefix
+  public void print(PrintWriter pout, String prefix) {
+    print(pout, prefix+"degree", terms);
+    print(pout, prefix+"segments", segments);
+    print(pout, prefix+"asymmetry", asym);
+    print(pout, prefix+"maxorder", maxOrder);
+    print(pout, prefix+"totlength", totLength);
+    print(pout, prefix+"maxpath", maxPath);
+    print(pout, prefix+"centorder", centOrder);
+    print(pout, prefix+"pathlength", pathLength);
+    print(pout, prefix+"termlength", termLength);
+    print(pout, prefix+"intlength", intLength);
+  }
+
+
+  private static void print(PrintWriter pout, String name, Accumulator a) {
+    pout.println(name+" "+a.count()+" "+(float)a.mean()+" "+(float)a.std()
+      +" "+(float)a.min()+" "+(float)a.quantile(0.05)+" "+(float)a.quantile(0.25)
+      +" "+(float)a.quantile(0.5)+" "+(float)a.quantile(0.75)
+      +" "+(float)a.quantile(0.95)+" "+(float)a.max());
+  }
+
+}
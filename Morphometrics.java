@@ -0,0 +1,157 @@
+/* Morphometrics.java
+
+Morphometric measures of a set of trees, collected in one walk
+over each tree
+  - per tree: segments, degree (terminals), total length,
+    asymmetry index, maximum centrifugal order and maximum path
+    length
+  - per terminal: centrifugal order, path length and terminal
+    segment length; per branch point: intermediate segment length
+    (all trees, in order of addition)
+  - values are the same as those of the Tree methods countSegments,
+    countTerminals, totPathLength, asymIndex, maxOrder,
+    maxPathLength, pathLengths, termLengths, intLengths and
+    centOrders
+  - all values go into primitive arrays that grow as needed, so
+    no counting pass is needed before storing them
+
+Version 1.0 18-10-26
+*/
+
+
+public class Morphometrics {
+
+  // Per tree values (ntrees of them)
+  public int ntrees = 0;
+  public int[] segments;  // number of segments
+  public int[] terms;  // number of terminals (degree)
+  public float[] totLength;  // total length (soma not included)
+  public float[] asym;  // asymmetry index
+  public int[] maxOrder;  // maximum centrifugal order
+  public float[] maxPath;  // maximum path length
+
+  // Per terminal values (nterms of them)
+  public int nterms = 0;
+  public int[] centOrder;  // centrifugal order
+  public float[] pathLength;  // path length from soma
+  public float[] termLength;  // terminal segment length
+
+  // Per branch point values (nints of them)
+  public int nints = 0;
+  public float[] intLength;  // intermediate segment length
+
+
+
+  // Constructor with expected number of trees
+  public Morphometrics(int size) {
+    if (size < 1) size = 1;
+    segments = new int[size];
+    terms = new int[size];
+    totLength = new float[size];
+    asym = new float[size];
+    maxOrder = new int[size];
+    maxPath = new float[size];
+    centOrder = new int[4*size];
+    pathLength = new float[4*size];
+    termLength = new float[4*size];
+    intLength = new float[4*size];
+  }
+
+
+  // Remove all values (arrays are kept)
+  public void clear() {
+    ntrees = 0;
+    nterms = 0;
+    nints = 0;
+  }
+
+
+  // Measure tree t (which must be up to date, see Tree.syncTree)
+  //   - path lengths of all nodes are also set, as by
+  //     Tree.maxPathLength
+  //   - returns index of the tree
+  public int add(Tree t) {
+    int nn = t.preorder();
+    Tree[] nodes = t.ctx.nodes;
+    Tree nd;
+    int nseg = 0, nterm = 0, mo = 0, ln, rn;
+    float tl = 0, mp = 0, part = 0;
+
+    if (ntrees == segments.length) growTrees();
+    for (int i = 0; i < nn; i++) {  // parents come first
+      nd = nodes[i];
+      if (nd.parent == null)  // soma not included
+        nd.pathlength = 0;
+      else
+        nd.pathlength = nd.parent.pathlength + nd.length;
+      if (i > 0 || nd.parent != null)
+        tl += nd.length;
+
+      if (nd.ltree == null && nd.rtree == null) {  // terminal
+        nseg++;
+        nterm++;
+        if (nd.order > mo) mo = nd.order;
+        if (nd.pathlength > mp) mp = nd.pathlength;
+        if (nterms == centOrder.length) growTerms();
+        centOrder[nterms] = nd.order;
+        pathLength[nterms] = nd.pathlength;
+        termLength[nterms++] = nd.length;
+      }
+      else if (nd.ltree != null && nd.rtree != null) {  // branch point
+        nseg++;
+        if (nints == intLength.length) intLength = grow(intLength, 2*nints);
+        intLength[nints++] = nd.length;
+        ln = nd.ltree.nterm;
+        rn = nd.rtree.nterm;
+        if (ln != 1 || rn != 1)
+          part += (float)Math.abs(ln-rn) / (float)(ln+rn-2);
+      };
+    };
+
+    segments[ntrees] = nseg;
+    terms[ntrees] = nterm;
+    totLength[ntrees] = tl;
+    asym[ntrees] = (nterm == 1) ? 0 : part / (float)(nterm-1);
+    maxOrder[ntrees] = mo;
+    maxPath[ntrees] = mp;
+    return ntrees++;
+  }
+
+
+  // Make room for more trees
+  private void growTrees() {
+    int size = 2*ntrees;
+
+    segments = grow(segments, size);
+    terms = grow(terms, size);
+    totLength = grow(totLength, size);
+    asym = grow(asym, size);
+    maxOrder = grow(maxOrder, size);
+    maxPath = grow(maxPath, size);
+  }
+
+
+  // Make room for more terminals
+  private void growTerms() {
+    int size = 2*nterms;
+
+    centOrder = grow(centOrder, size);
+    pathLength = grow(pathLength, size);
+    termLength = grow(termLength, size);
+  }
+
+
+  private static int[] grow(int[] a, int size) {
+    int[] na = new int[size];
+    System.arraycopy(a, 0, na, 0, a.length);
+    return na;
+  }
+
+
+  private static float[] grow(float[] a, int size) {
+    float[] na = new float[size];
+    System.arraycopy(a, 0, na, 0, a.length);
+    return na;
+  }
+
+}
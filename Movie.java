@@ -0,0 +1,282 @@
+/* Movie.java
+
+Headless growth movies (command line)
+  - grows one tree of a parameter file and saves a picture of it
+    every given interval of simulation time as a numbered PNG file
+    (stem_00000.png, stem_00001.png, ...), for making into a movie
+    with any video tool:
+      java Movie [options] file.par
+  - pictures are drawn as in the tree window (display parameters
+    of the file, ColScale colours), by default straight into the
+    image pixels (see TreeRaster) or with -java2d as by TreeDraw
+  - the simulation only makes a snapshot of the tree for each
+    picture (see TreeSnapshot); drawing and PNG encoding are done
+    by a pool of threads
+  - snapshots waiting to be drawn may use at most a given amount
+    of memory (-buffer, default 64 MB; 24 bytes per node), so they
+    cannot pile up; while that is full the simulation makes no
+    snapshot and goes on (as for TreeDisplay.ready), so it never
+    waits for drawing or encoding; skipped pictures are counted and
+    reported, and the saved pictures are numbered without gaps
+  - needs no screen
+
+Version 1.0 18-10-26
+*/
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+
+public class Movie {
+
+  private static final int dispoff = 10;  // offset of tree in picture
+  private static final int WHITE = 0xffffffff;
+  private static final int NODEBYTES = 24;  // snapshot memory per node
+
+  Batch b;  // parameter file
+  int itree = 0;  // tree to grow (from 0)
+  double every = 1;  // time between pictures
+  String stem;  // picture file stem
+  int width, height;  // picture size
+  boolean java2d = false;  // draw by TreeDraw
+  String dname;  // displayed variable
+  float dmval;  // maximum display value
+
+  ThreadPoolExecutor pool;  // drawing and encoding threads
+  long maxwait;  // most snapshot nodes waiting to be drawn
+  final AtomicLong waiting = new AtomicLong();  // nodes of snapshots handed to pool, not done
+  int nframes;  // pictures handed to pool
+  int skipped;  // pictures not made (pool busy)
+  final AtomicInteger failed = new AtomicInteger();  // pictures not saved
+
+  // Drawers of each pool thread
+  private final ThreadLocal<TreeRaster> rasters = new ThreadLocal<TreeRaster>() {
+    protected TreeRaster initialValue() { return new TreeRaster(width, height); }
+  };
+  private final ThreadLocal<TreeDraw> draws = new ThreadLocal<TreeDraw>() {
+    protected TreeDraw initialValue() { return new TreeDraw(); }
+  };
+
+
+
+  // Make pictures of the growth of one tree of a parameter file
+  public static void main(String args[]) {
+    Movie m = new Movie();
+    String fname = null, size = null;
+    int nthreads = Runtime.getRuntime().availableProcessors(), buffer = 64;
+    long t0 = System.currentTimeMillis();
+
+    System.setProperty("java.awt.headless", "true");
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("-")) {
+        if (fname != null) usage();
+        fname = args[i];
+      }
+      else if (args[i].equals("-java2d"))
+        m.java2d = true;
+      else if (i+1 >= args.length)
+        usage();
+      else if (args[i].equals("-every"))
+        m.every = Double.valueOf(args[++i]).doubleValue();
+      else if (args[i].equals("-tree"))
+        m.itree = Integer.parseInt(args[++i]) - 1;
+      else if (args[i].equals("-size"))
+        size = args[++i];
+      else if (args[i].equals("-o"))
+        m.stem = args[++i];
+      else if (args[i].equals("-t"))
+        nthreads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-buffer"))
+        buffer = Integer.parseInt(args[++i]);
+      else
+        usage();
+    };
+    if (fname == null || m.every <= 0 || m.itree < 0 || buffer < 1) usage();
+
+    m.b = new Batch();
+    try {
+      m.b.load(fname);
+      if (m.stem == null) m.stem = m.b.fSstem;
+      m.setDisplay(size);
+      m.newPool(Math.max(1, nthreads), (long)buffer*(1 << 20)/NODEBYTES);
+      m.run();
+    }
+    catch(IOException e) {
+      System.err.println(fname+": "+e.getMessage());
+      System.exit(1);
+    }
+    catch(NumberFormatException e) {
+      System.err.println(fname+": bad parameter value ("+e.getMessage()+")");
+      System.exit(1);
+    };
+    System.out.println(fname+": tree "+(m.itree+1)+", "+(m.nframes-m.failed.get())
+      +" pictures"+((m.skipped > 0) ? " ("+m.skipped+" skipped, drawing too slow)" : "")
+      +", "+(System.currentTimeMillis()-t0)+" ms -> "+m.stem+"_*.png");
+    if (m.failed.get() > 0) System.exit(1);
+  }
+
+
+  private static void usage() {
+    System.err.println("Usage: java Movie [options] file.par");
+    System.err.println("  -every dT    simulation time between pictures (default 1)");
+    System.err.println("  -tree i      tree of the run to grow (default 1)");
+    System.err.println("  -size WxH    picture size (default display size in file)");
+    System.err.println("  -java2d      draw with Java 2D lines (default: raster)");
+    System.err.println("  -o stem      picture file stem (default statistics file stem)");
+    System.err.println("  -t threads   drawing threads (default: all processors)");
+    System.err.println("  -buffer MB   memory for pictures waiting to be drawn (default 64)");
+    System.exit(2);
+  }
+
+
+
+  // Pool of nthreads drawing threads
+  //   - snapshots of at most about maxwait nodes are handed over at
+  //     a time (see ready), so the queue need not be bounded itself
+  void newPool(int nthreads, long maxwait) {
+    this.maxwait = maxwait;
+    pool = new ThreadPoolExecutor(nthreads, nthreads, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>());
+  }
+
+
+  // Pool can take another picture
+  //   - one snapshot always fits, however large the tree
+  boolean ready() {
+    return waiting.get() < maxwait;
+  }
+
+
+  // Drawing parameters from the display parameters of the file
+  //   - size (WxH) replaces the display size if given
+  void setDisplay(String size) {
+    int k;
+
+    Batch.setDrawing(b.GRAPHIC_data);
+    width = Integer.parseInt(b.GRAPHIC_data[0][2]);
+    height = Integer.parseInt(b.GRAPHIC_data[1][2]);
+    if (size != null) {
+      k = size.indexOf('x');
+      if (k < 0) throw new NumberFormatException("size "+size);
+      width = Integer.parseInt(size.substring(0, k));
+      height = Integer.parseInt(size.substring(k+1));
+    };
+    if (width <= 2*dispoff || height <= 2*dispoff)
+      throw new NumberFormatException("size "+width+"x"+height);
+    dname = b.GRAPHIC_data[2][2];
+    dmval = Float.valueOf(b.GRAPHIC_data[3][2]).floatValue();
+  }
+
+
+
+  // Grow the tree to Tstop, handing a snapshot to the pool every
+  // interval (and at the start and end)
+  //   - the picture of an interval is skipped if the pool is busy
+  public void run() {
+    Tree br = b.newTree(itree);
+    TreeLayout lay = new TreeLayout();
+    double tsim = 0, tnext = 0;
+    long nstep = 0;
+    float h;
+
+    while (true) {
+      if (tsim >= tnext) {
+        if (ready())
+          frame(new TreeSnapshot(br, lay, dname, dmval, tsim, nstep));
+        else
+          skipped++;
+        while (tnext <= tsim) tnext += every;
+      };
+      if (tsim >= b.Tstop) break;
+      h = br.ctx.nextStep(tsim);  // fixed or adaptive step
+      tsim += (double)h;
+      nstep++;
+      br.stepTree(tsim);
+      if (tsim >= b.Tstop && tsim < tnext)
+        tnext = tsim;  // final picture
+    };
+
+    // wait for the last pictures
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {};
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    };
+  }
+
+
+  // Hand snapshot s to the pool as the next picture
+  //   - pictures that fail are counted (first one reported)
+  void frame(final TreeSnapshot s) {
+    final String fname = stem+"_"+pad(nframes++)+".png";
+
+    waiting.addAndGet(s.n);
+    pool.execute(new Runnable() {
+      public void run() {
+        try {
+          ImageIO.write(draw(s), "png", new File(fname));
+        }
+        catch(IOException e) {
+          if (failed.getAndIncrement() == 0)
+            System.err.println(fname+": "+e.getMessage());
+        }
+        catch(RuntimeException e) {
+          if (failed.getAndIncrement() == 0)
+            System.err.println(fname+": "+e);
+        }
+        finally {
+          waiting.addAndGet(-s.n);
+        };
+      }
+    });
+  }
+
+
+  // Draw snapshot s with this thread's drawer
+  //   - as TreeDisplay, with the colour scale near the top
+  BufferedImage draw(TreeSnapshot s) {
+    int dtw = width - (2*dispoff), dth = height - (2*dispoff);
+    BufferedImage im;
+    Graphics2D g;
+    TreeRaster r;
+
+    if (java2d) {
+      im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      g = im.createGraphics();
+      g.setBackground(Color.white);
+      g.clearRect(0, 0, width, height);
+      g.translate(dispoff, dispoff);
+      g.setStroke(new BasicStroke(5.0f));
+      ColScale.drawCS(g, 0, dth/10, dtw/2);  // colour scale
+      draws.get().drawTree(s, g, 0, 0, dtw, dth);
+      g.dispose();
+      return im;
+    };
+    r = rasters.get();
+    r.clear(WHITE);
+    r.drawCS(dispoff, dispoff+(dth/10), dtw/2);  // colour scale
+    r.drawTree(s, dispoff, dispoff, dtw, dth);
+    return r.image;
+  }
+
+
+  // Picture number with leading zeros
+  static String pad(int k) {
+    String n = String.valueOf(k);
+
+    while (n.length() < 5) n = "0"+n;
+    return n;
+  }
+
+}
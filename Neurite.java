@@ -23,6 +23,7 @@ public class Neurite extends Applet implements Runnable {
   public static final int BES_type = 0;
   public static final int AD_type = 1;
   public static final int ADcm_type = 2;
+  public static final int BESE_type = 3;  // event-driven BESTL
 
   // Tree structure
   Tree[] branches;
@@ -63,18 +64,16 @@ public class Neurite extends Applet implements Runnable {
   public static int mainh=220;
 
   // Graphics display
-  private boolean refresh=true;  // refresh display
   public static int dispw=600;  // display width
   public static int disph=350;  // display height
-  public static int dispoffx=10;  // x offset
-  public static int dispoffy=10;  // y offset
-  public static int dtw=580;
-  public static int dth=330;
   public static String dname="";  // parameter to display
   public static float dmval=1.0f;  // maximum parameter value
   public static int dtdisp=1;  // display every dtdisp time steps
   public static boolean dispfl=false;  // turn display on or off
   private TreeDisplay treeDisp;	// graphic display window
+  private final TreeLayout dlayout = new TreeLayout();  // layout of displayed tree
+  private static final long SNAPMS = 20;  // least time between snapshots (ms)
+  private long tsnap = 0;  // time of last snapshot (ms)
 
   // Plots
   public static int pw=300;  // plot width
@@ -89,9 +88,19 @@ public class Neurite extends Applet implements Runnable {
 
   // Simulation parameters
   private Thread construct_thread=null;  // tree constructor
+  private Ensemble ensemble=null;  // concurrent growth of multiple trees
+  private StopFlag stopfl=new StopFlag();  // stops current construction
   float dt=1;   // time step
   double Tstop=0;  // total simulation time
   double tsim=0;  // elapsed simulation time
+  long nstep=0;  // time steps taken
+  int adapt=0;  // adaptive time step (see SimContext)
+  float dttol=0.001f;  // error tolerance for adaptive time step
+  int fusedfl=1;  // fused (1) or separate phase (0) time steps (BESTL)
+  int streamfl=0;  // streaming statistics: trees are dropped once summarised
+  long seed=0;  // master random seed (0 = time-based)
+  MorphSummary summary=null;  // statistics of streamed trees
+  MorphSummary stats=null;  // statistics of all trees
   double Tstep=0;  // time to step through
   double Tend=0;  // current stop time
   boolean dostep=false;  // step through growth
@@ -150,33 +159,11 @@ public class Neurite extends Applet implements Runnable {
 
   // Data entry
     
-  String SIM_data[][] = {
-    {"Number of trees:", "1", "1"},
-    {"Time step (dt):", "1", "1"},
-    {"Simulation time (Tstop):", "200", "200"},
-    {"Store statistics (1=yes):", "0", "0"},
-    {"Statistics file stem:", "AD", "AD"},
-    {"Store concentrations (1=yes):", "0", "0"},
-    {"Concentration file stem:", "AD", "AD"},
-    {"Store lengths (1=yes):", "0", "0"},
-    {"Length file stem:", "AD", "AD"},
-    {"Store no. terminals over time (1=yes):", "0", "0"},
-    {"Storage interval (time):", "1", "1"}};
-  private final int Nsim = 11;
-
-  String GRAPHIC_data[][] = {
-    {"Display width:", "600", "600"},
-    {"Display height:", "350", "350"},
-    {"Display parameter:", "Cbr", "Cbr"},
-    {"Maximum display value:", "1.0", "1.0"},
-    {"Display interval (steps):", "1", "1"},
-    {"Display delay (msecs):", "0", "0"},
-    {"Maximum path length (um):", "100", "100"},
-    {"Initial branch angle (deg):", "20", "20"},
-    {"Angle scaling factor:", "-0.4", "-0.4"},
-    {"Soma scaling factor:", "1.0", "1.0"},
-    {"Dendrite scaling factor:", "5.0", "5.0"}};
-  private final int Ngraphic = 11;
+  String SIM_data[][] = Batch.newSimData();  // (shared with Batch)
+  private final int Nsim = Batch.Nsim;
+
+  String GRAPHIC_data[][] = Batch.newGraphicData();
+  private final int Ngraphic = Batch.Ngraphic;
 
   String PLOT_data[][] = {
     {"Plot width:", "300", "300"},
@@ -220,12 +207,7 @@ public class Neurite extends Applet implements Runnable {
     dname = GRAPHIC_data[2][2];
     dmval = Float.valueOf(GRAPHIC_data[3][2]).floatValue();
     dtdisp = Integer.parseInt(GRAPHIC_data[4][2]);
-    Tree.drawdel = (long)Integer.parseInt(GRAPHIC_data[5][2]);
-    Tree.maxLength = Float.valueOf(GRAPHIC_data[6][2]).floatValue();
-    Tree.bangle = Float.valueOf(GRAPHIC_data[7][2]).floatValue();
-    Tree.badel = Float.valueOf(GRAPHIC_data[8][2]).floatValue();
-    Tree.scsoma = Float.valueOf(GRAPHIC_data[9][2]).floatValue();
-    Tree.scdend = Float.valueOf(GRAPHIC_data[10][2]).floatValue();
+    Batch.setDrawing(GRAPHIC_data);
 
     tp = new TermPlot[NPMAX];
     nplots = 0;
@@ -275,44 +257,12 @@ public class Neurite extends Applet implements Runnable {
         BufferedReader r = new BufferedReader(new InputStreamReader(fi));
         
         // model parameters
-        String[][] MOD_data = BESTree.DEparams;
-        int Nmod = BESTree.Nparams;
-        currl = r.readLine();
-        currl = r.readLine();
-        currl = r.readLine();
-        currl = r.readLine();
-        currl = r.readLine();
-        tree_type = Integer.parseInt(currl);   // model type number
+        tree_type = Batch.readModel(r);   // model type number
         tree_choice.select(tree_type);   // set model in menu selection
-        switch (tree_type) {
-        case BES_type:
-          default:
-          MOD_data = BESTree.DEparams;
-          Nmod = BESTree.Nparams;
-          break;
-        case AD_type:
-          MOD_data = ADTree.DEparams;
-          Nmod = ADTree.Nparams;
-          break;
-        case ADcm_type:
-            MOD_data = ADcmTree.DEparams;
-            Nmod = ADcmTree.Nparams;
-            break;
-         };
-        for (int i = 0; i < Nmod; i++) {
-          currl = r.readLine();
-          currl = r.readLine();
-          MOD_data[i][2] = currl;
-        };
         
         // simulation parameters
-        currl = r.readLine();
-        currl = r.readLine();
-        for (int i = 0; i < Nsim; i++) {
-          currl = r.readLine();
-          currl = r.readLine();
-          SIM_data[i][2] = currl;
-        };
+        currl = Batch.readLine(r);
+        Batch.readParams(r, SIM_data, Nsim);
         nTrees = Integer.parseInt(SIM_data[0][2]);
         dt = Float.valueOf(SIM_data[1][2]).floatValue();
         Tstop = Double.valueOf(SIM_data[2][2]).floatValue();
@@ -324,28 +274,22 @@ public class Neurite extends Applet implements Runnable {
         fLstem = SIM_data[8][2];
         sTflag = Integer.parseInt(SIM_data[9][2]);
         Tterm = Double.valueOf(SIM_data[10][2]).floatValue();
-	    timeTerm = new int[nTrees][(int)(Tstop/Tterm)+1];
-	    for (int i = 0; i < nTrees; i++) timeTerm[i][0] = 1;
+        adapt = Integer.parseInt(SIM_data[11][2]);
+        dttol = Float.valueOf(SIM_data[12][2]).floatValue();
+        fusedfl = Integer.parseInt(SIM_data[13][2]);
+        streamfl = Integer.parseInt(SIM_data[14][2]);
+        seed = Long.parseLong(SIM_data[15][2]);
+	    newTimeTerm();
 
         // graphic display parameters
-        currl = r.readLine();
-        currl = r.readLine();
-        for (int i = 0; i < Ngraphic; i++) {
-          currl = r.readLine();
-          currl = r.readLine();
-          GRAPHIC_data[i][2] = currl;
-        };
+        currl = Batch.readLine(r);
+        Batch.readParams(r, GRAPHIC_data, Ngraphic);
         dispw = Integer.parseInt(GRAPHIC_data[0][2]);
         disph = Integer.parseInt(GRAPHIC_data[1][2]);
         dname = GRAPHIC_data[2][2];
         dmval = Float.valueOf(GRAPHIC_data[3][2]).floatValue();
         dtdisp = Integer.parseInt(GRAPHIC_data[4][2]);
-        Tree.drawdel = (long)Integer.parseInt(GRAPHIC_data[5][2]);
-        Tree.maxLength = Float.valueOf(GRAPHIC_data[6][2]).floatValue();
-        Tree.bangle = Float.valueOf(GRAPHIC_data[7][2]).floatValue();
-        Tree.badel = Float.valueOf(GRAPHIC_data[8][2]).floatValue();
-        Tree.scsoma = Float.valueOf(GRAPHIC_data[9][2]).floatValue();
-        Tree.scdend = Float.valueOf(GRAPHIC_data[10][2]).floatValue();        
+        Batch.setDrawing(GRAPHIC_data);
         fi.close();
         }
         catch(IOException e) {
@@ -398,6 +342,11 @@ public class Neurite extends Applet implements Runnable {
             MOD_data = ADcmTree.DEparams;
             Nmod = ADcmTree.Nparams;
             break;
+        case BESE_type:
+            po.println("# MODEL: BESTL (event)");
+            MOD_data = BESTree.DEparams;
+            Nmod = BESTree.Nparams;
+            break;
         };
         po.println(tree_type);   // model type number
         for (int i = 0; i < Nmod; i++) {
@@ -435,6 +384,7 @@ public class Neurite extends Applet implements Runnable {
     tree_choice.addItem("BESTL");
     tree_choice.addItem("AD");
     tree_choice.addItem("ADcm");
+    tree_choice.addItem("BESTL (event)");
     add(tree_choice);
     tree_choice.addItemListener(new ItemListener() {
       public void itemStateChanged(ItemEvent event) {
@@ -480,8 +430,12 @@ public class Neurite extends Applet implements Runnable {
         fLstem = SIM_data[8][2];
         sTflag = Integer.parseInt(SIM_data[9][2]);
         Tterm = Double.valueOf(SIM_data[10][2]).floatValue();
-        timeTerm = new int[nTrees][(int)(Tstop/Tterm)+1];
-        for (int i = 0; i < nTrees; i++) timeTerm[i][0] = 1;
+        adapt = Integer.parseInt(SIM_data[11][2]);
+        dttol = Float.valueOf(SIM_data[12][2]).floatValue();
+        fusedfl = Integer.parseInt(SIM_data[13][2]);
+        streamfl = Integer.parseInt(SIM_data[14][2]);
+        seed = Long.parseLong(SIM_data[15][2]);
+        newTimeTerm();
 	  }
     });
 
@@ -499,12 +453,7 @@ public class Neurite extends Applet implements Runnable {
         dname = GRAPHIC_data[2][2];
         dmval = Float.valueOf(GRAPHIC_data[3][2]).floatValue();
         dtdisp = Integer.parseInt(GRAPHIC_data[4][2]);
-        Tree.drawdel = (long)Integer.parseInt(GRAPHIC_data[5][2]);
-        Tree.maxLength = Float.valueOf(GRAPHIC_data[6][2]).floatValue();
-        Tree.bangle = Float.valueOf(GRAPHIC_data[7][2]).floatValue();
-        Tree.badel = Float.valueOf(GRAPHIC_data[8][2]).floatValue();
-        Tree.scsoma = Float.valueOf(GRAPHIC_data[9][2]).floatValue();
-        Tree.scdend = Float.valueOf(GRAPHIC_data[10][2]).floatValue();
+        Batch.setDrawing(GRAPHIC_data);
       }
     });
 
@@ -581,6 +530,7 @@ public class Neurite extends Applet implements Runnable {
     stop_button.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent event) {
         dostep = false;
+        stopfl.set();
       }
     });
 
@@ -594,7 +544,6 @@ public class Neurite extends Applet implements Runnable {
         if (getTreeIndex() == true) {
           if (branches != null && branches[ibr] != null) {
             indTreeStats(ibr);  // display statistics
-            refresh = true;
             nTerms = 0;
             paint(g);
           } else
@@ -630,55 +579,50 @@ public class Neurite extends Applet implements Runnable {
 
 
   // Graphics
+  //   - while trees are being constructed (including the step in
+  //     progress when Stop is pressed) only the construction thread
+  //     hands them to the display (see growTree and run)
   public void paint(Graphics g) {
+    if (construct_thread == null || !construct_thread.isAlive())
+      showTree(true);
+  }
 
-    Graphics2D gt, gp;
-    Stroke treeStroke;
-
-
-    if (branches != null && branches[ibr] != null) {
-      g = treeDisp.dc.getGraphics();
-      // get drawing area size
-      Rectangle r = treeDisp.dc.getBounds();  // applet size
-      // refresh if new tree, or window has changed size
-      if (dispfl && (refresh || dispw != r.width || disph != r.height)) {
-        dispw = r.width;
-        disph = r.height;
-        dth = disph - (2*dispoffy);
-        dtw = dispw - (2*dispoffx);
-        // offscreen image for tree
-        treeDisp.dc.imageTree = treeDisp.dc.createImage(dispw, disph);
-        gt = (Graphics2D) treeDisp.dc.imageTree.getGraphics();
-        treeStroke = new BasicStroke(5.0f);
-        gt.setStroke(treeStroke);
-        // colour scale for drawing
-        ColScale.drawCS(gt, 0, dth/10, dtw/2);
-        g.drawImage(treeDisp.dc.imageTree,dispoffx,dispoffy,treeDisp.dc);
-        refresh = false;
-      };
-      // draw current tree
-      if (dispfl && ((long)(tsim/(double)dt) % dtdisp == 0)) {
-        gt = (Graphics2D) treeDisp.dc.imageTree.getGraphics();
-        gt.clearRect(0, 0, dtw, dth);
-        treeStroke = new BasicStroke(5.0f);
-        gt.setStroke(treeStroke);
-        ColScale.drawCS(gt, 0, dth/10, dtw/2);
-        branches[ibr].displayTree(gt, 0, 0, dtw, dth, dname, dmval);
-        g.drawImage(treeDisp.dc.imageTree,dispoffx,dispoffy,treeDisp.dc);
-        treeDisp.dc.getToolkit().sync();  // draw now
-      };
-      // plot terminal values
-      for (int i = 0; i < nplots; i++) {
-        if (dostep && ((long)(tsim/(double)dt) % tp[i].dtplot == 0)) {
-          gp = (Graphics2D) tp[i].gp.imagePlot.getGraphics();
-          tp[i].plotTerms(gp, branches[ibr], tsim, Tstop, tp[i].pname, tp[i].pmval);
-          tp[i].repaint();
-          if (tp[i].sPflag == 1)
-           tp[i].saveTerms(branches[ibr], tsim, tp[i].pname);
-        };
+
+
+  // Hand current tree to display window (see TreeDisplay)
+  //   - a new snapshot is only made once the display has taken the
+  //     last one and SNAPMS have passed since it was made (unless
+  //     always), so the simulation never waits for drawing and
+  //     makes no more snapshots than can be shown
+  //   - only the part of the tree grown since the last snapshot is
+  //     laid out again (see TreeLayout)
+  void showTree(boolean always) {
+    if (!dispfl || treeDisp == null || branches == null || branches[ibr] == null)
+      return;
+    if (always || (treeDisp.ready() && System.currentTimeMillis()-tsnap >= SNAPMS)) {
+      synchronized (dlayout) {
+        treeDisp.show(new TreeSnapshot(branches[ibr], dlayout, dname, dmval, tsim, nstep));
+        tsnap = System.currentTimeMillis();
       };
-    };  
+    };
+  }
+
+
+
+  // Plot terminal values of current tree
+  //   - always: plot now, whatever the plot interval
+  void plotTerms(boolean always) {
+    Graphics2D gp;
 
+    for (int i = 0; i < nplots; i++) {
+      if (dostep && (always || nstep % tp[i].dtplot == 0)) {
+        gp = (Graphics2D) tp[i].gp.imagePlot.getGraphics();
+        tp[i].plotTerms(gp, branches[ibr], tsim, Tstop, tp[i].pname, tp[i].pmval);
+        tp[i].repaint();
+        if (tp[i].sPflag == 1)
+         tp[i].saveTerms(branches[ibr], tsim, tp[i].pname);
+      };
+    };
   }
 
 
@@ -693,53 +637,27 @@ public class Neurite extends Applet implements Runnable {
   // Construct required number of trees
   public void constructTree(double t) {
 
-    switch (tree_type) {
-      case BES_type:
-      default:
-        BESTree.updateParams();
-        BESTree.setTimeStep(dt);
-        break;
-      case AD_type:
-        ADTree.updateParams();
-        ADTree.setTimeStep(dt);
-        break;
-      case ADcm_type:
-        ADcmTree.updateParams();
-        ADcmTree.setTimeStep(dt);
-        break;
-    };
-
     // Set up for new construction or continuation
     if (!stepping) {  // new construction
       branches = new Tree[nTrees];
+      summary = null;
       // construct cell bodies (with initial neurites)
-      for (ibr = 0; ibr < nTrees; ibr++) {
-        switch (tree_type) {
-     case BES_type:
-          default:
-            branches[ibr] = new BESTree(0, 0);
-            break;
-     case AD_type:
-            branches[ibr] = new ADTree(0, 0);
-            break;
-     case ADcm_type:
-         branches[ibr] = new ADcmTree(0, 0);
-         break;
-        };
-      };
+      //   - streamed trees are made as they are started
+      if (!streaming())
+        for (ibr = 0; ibr < nTrees; ibr++)
+          branches[ibr] = newTree(ibr);
       ibr = 0;
       tsim = 0;
-      refresh = true;
+      nstep = 0;
       stepping = true;
       nTerms = 0;
-    } else {  // continuation of single tree
-      refresh = false;
     };
     Tend = tsim + t;
     if (Tend > Tstop) Tend = Tstop;          
     dostep = true;
 
     // Construct trees
+    stopfl = new StopFlag();
     construct_thread = new Thread(this);
     construct_thread.start();
 
@@ -747,17 +665,61 @@ public class Neurite extends Applet implements Runnable {
 
 
 
+  // New tree (cell body and first neurite) of the current model
+  //   - each tree has its own copy of the current parameters
+  //   - tree i has its own random streams from the master seed
+  Tree newTree(int i) {
+    return Batch.newTree(tree_type, Batch.modelParams(tree_type), dt, adapt, dttol, fusedfl, seed, i);
+  }
+
+
+  // Statistics are streamed (trees not kept)
+  boolean streaming() {
+    return streamfl == 1 && nTrees > 1;
+  }
+
+
+  // Set up storage for no. of terminals over time
+  //   - not needed when statistics are streamed
+  void newTimeTerm() {
+    timeTerm = null;
+    if (streaming()) return;
+    timeTerm = new int[nTrees][(int)(Tstop/Tterm)+1];
+    for (int i = 0; i < nTrees; i++) timeTerm[i][0] = 1;
+  }
+
+
+
   // Thread to construct trees
   public void run() {
 
-    for (ibr = 0; ibr < nTrees && dostep; ibr++) {
-      message_text.setText("Tree "+(ibr+1));
-      growTree(ibr, Tend);  // construct tree
-      if (tsim >= Tstop) {
-        tsim = 0;  // finished tree
-        for (int i = 0; i < nplots; i++) {
-          if (tp[i].sPflag == 1)
-           tp[i].flushTerms();
+    if (streaming() && tsim == 0) {  // trees summarised and dropped
+      if (ensemble == null) ensemble = new Ensemble();
+      message_text.setText(nTrees+" trees on "+ensemble.getThreads()+" threads (streaming)");
+      summary = new MorphSummary((sTflag == 1) ? (int)(Tstop/Tterm)+1 : 0);
+      if (!ensemble.growTrees(new TreeSource() {
+            public Tree newTree(int i) { return Neurite.this.newTree(i); }
+          }, nTrees, Tend, summary, Tterm, stopfl))
+        dostep = false;  // stopped
+    }
+    else if (nTrees > 1 && tsim == 0) {  // independent trees, grown concurrently
+      if (ensemble == null) ensemble = new Ensemble();
+      message_text.setText(nTrees+" trees on "+ensemble.getThreads()+" threads");
+      if (!ensemble.growTrees(branches, Tend, (sTflag == 1) ? timeTerm : null, Tterm, stopfl))
+        dostep = false;  // stopped
+    }
+    else {  // one tree at a time (with display and plots)
+      for (ibr = 0; ibr < nTrees && dostep; ibr++) {
+        message_text.setText("Tree "+(ibr+1));
+        growTree(ibr, Tend);  // construct tree
+        if (nTrees == 1) showTree(true);  // final state
+        if (tsim >= Tstop) {
+          tsim = 0;  // finished tree
+          nstep = 0;
+          for (int i = 0; i < nplots; i++) {
+            if (tp[i].sPflag == 1)
+             tp[i].flushTerms();
+          };
         };
       };
     };
@@ -791,19 +753,29 @@ public class Neurite extends Applet implements Runnable {
 
 
   // Grow a tree and display growth
+  //   - a jump to the end time is displayed and plotted as a step
   public void growTree(int ibr, double Tend) {
 
+    float h;
+    boolean jump;
+
     while (dostep && tsim < Tend) {
-      tsim += (double)dt;   // update simulation time
-      branches[ibr].branchTree(tsim);
-      branches[ibr].elongateTree(tsim);
-      branches[ibr].diamTree(tsim);
-      branches[ibr].updateTree(tsim);
-      if (sTflag == 1 && (Math.round(tsim/(double)dt) % Math.round(Tterm/(double)dt) == 0)) {
-        timeTerm[ibr][(int)(tsim/Tterm)] = branches[ibr].countTerminals();
+      jump = branches[ibr].passive(tsim);
+      if (jump) {
+        h = (float)(Tend-tsim);  // only elongation left: jump to end
+        tsim = Tend;
+      }
+      else {
+        h = branches[ibr].ctx.nextStep(tsim);  // fixed or adaptive step
+        tsim += (double)h;   // update simulation time
       };
-      if (nTrees == 1 && dispfl && ((long)(tsim/(double)dt) % dtdisp == 0)) {
-        paint(g);
+      nstep++;
+      branches[ibr].stepTree(tsim);
+      if (sTflag == 1)
+        Ensemble.recordTerminals(branches[ibr], timeTerm[ibr], tsim, h, Tterm);
+      if (nTrees == 1 && dispfl && (jump || nstep % dtdisp == 0)) {
+        showTree(jump);
+        plotTerms(jump);
       };
     };
 
@@ -828,70 +800,40 @@ public class Neurite extends Applet implements Runnable {
   // Calculate tree statistics
   void calcTreeStats() {
 
-    // data structures for one point per tree
-    totSegments = new int[nTrees];
-    totTerms = new int[nTrees];
-    totLength = new float[nTrees];
-    asym = new float[nTrees];
-    maxCO = new int[nTrees];
-    maxPath = new float[nTrees];
-
-    // calculate data (one data point per tree)
-    for (ibr = 0; ibr < nTrees; ibr++) {
-      totSegments[ibr] = branches[ibr].countSegments();
-      totTerms[ibr] = branches[ibr].countTerminals();
-      totLength[ibr] = branches[ibr].totPathLength();
-      asym[ibr] = branches[ibr].asymIndex();
-      maxCO[ibr] = branches[ibr].maxOrder();
-      maxPath[ibr] = branches[ibr].maxPathLength();
+    if (summary != null) {  // streamed trees
+      stats = summary;
+      summaryStats(summary);
+      return;
     };
 
-    // calculate numbers of data points for multiple points per tree
-    nTerms = 0; nInts = 0;
+    Morphometrics m = new Morphometrics(nTrees);
+
+    // calculate data (one walk per tree)
     for (ibr = 0; ibr < nTrees; ibr++) {
-      nTerms = nTerms + totTerms[ibr];  // number of terminals
-      nInts = nInts + totSegments[ibr] - totTerms[ibr];  // intermediates
+      branches[ibr].syncTree();  // tree nodes up to date
+      m.add(branches[ibr]);
     };
 
-    // data structures for multiple points per tree
-    centorder = new int[nTerms];
-    pathLength = new float[nTerms];
-    termLength = new float[nTerms];
-    intLength = new float[nInts];
-
-    // calculate and store this data
-    int i = 0;
-    int j = 0;
-    branches[0].pathLengths(pathLength, 0);
-    branches[0].termLengths(termLength, 0);
-    branches[0].intLengths(intLength, 0);
-    branches[0].centOrders(centorder, 0);
-    for (ibr = 1; ibr < nTrees; ibr++) {
-      i = i + totTerms[ibr-1];
-      branches[ibr].pathLengths(pathLength, i);
-      branches[ibr].termLengths(termLength, i);
-      branches[ibr].centOrders(centorder, i);
-      j = j + totSegments[ibr-1] - totTerms[ibr-1];
-      branches[ibr].intLengths(intLength, j);
-    };
+    // one data point per tree
+    totSegments = m.segments;
+    totTerms = m.terms;
+    totLength = m.totLength;
+    asym = m.asym;
+    maxCO = m.maxOrder;
+    maxPath = m.maxPath;
+
+    // multiple data points per tree
+    nTerms = m.nterms;
+    nInts = m.nints;
+    centorder = m.centOrder;
+    pathLength = m.pathLength;
+    termLength = m.termLength;
+    intLength = m.intLength;
 
     // stats on data points
-    mSegs = (float)ArrayStats.mean(totSegments, nTrees);
-    sdSegs = (float)ArrayStats.std(totSegments, nTrees);
-    mTerms = (float)ArrayStats.mean(totTerms, nTrees);
-    sdTerms = (float)ArrayStats.std(totTerms, nTrees);
-    mLength = (float)ArrayStats.mean(totLength, nTrees);
-    sdLength = (float)ArrayStats.std(totLength, nTrees);
-    mAsym = (float)ArrayStats.mean(asym, nTrees);
-    sdAsym = (float)ArrayStats.std(asym, nTrees);
-    mCO = (float)ArrayStats.mean(centorder, nTerms);
-    sdCO = (float)ArrayStats.std(centorder, nTerms);
-    mPathL = (float)ArrayStats.mean(pathLength, nTerms);
-    sdPathL = (float)ArrayStats.std(pathLength, nTerms);
-    mTermL = (float)ArrayStats.mean(termLength, nTerms);
-    sdTermL = (float)ArrayStats.std(termLength, nTerms);
-    mIntL = (float)ArrayStats.mean(intLength, nInts);
-    sdIntL = (float)ArrayStats.std(intLength, nInts);
+    stats = new MorphSummary(0);
+    stats.add(m);
+    summaryStats(stats);
 
     // calculate average number of terminals over time
     mtimeTerm = new float[(int)(Tstop/Tterm)+1];
@@ -905,6 +847,36 @@ public class Neurite extends Applet implements Runnable {
 
 
 
+  // Take tree statistics from a summary
+  void summaryStats(MorphSummary s) {
+    nTerms = (int)s.centOrder.count();
+    nInts = (int)s.intLength.count();
+    mSegs = (float)s.segments.mean();
+    sdSegs = (float)s.segments.std();
+    mTerms = (float)s.terms.mean();
+    sdTerms = (float)s.terms.std();
+    mLength = (float)s.totLength.mean();
+    sdLength = (float)s.totLength.std();
+    mAsym = (float)s.asym.mean();
+    sdAsym = (float)s.asym.std();
+    mCO = (float)s.centOrder.mean();
+    sdCO = (float)s.centOrder.std();
+    mPathL = (float)s.pathLength.mean();
+    sdPathL = (float)s.pathLength.std();
+    mTermL = (float)s.termLength.mean();
+    sdTermL = (float)s.termLength.std();
+    mIntL = (float)s.intLength.mean();
+    sdIntL = (float)s.intLength.std();
+
+    if (s.termT != null) {
+      mtimeTerm = new float[s.termT.length];
+      for (int it = 0; it < mtimeTerm.length; it++)
+        mtimeTerm[it] = (float)(s.termT[it] / (double)nTrees);
+    };
+  }
+
+
+
   // Show individual tree statistics
   void indTreeStats(int ibr) {
     message = new StringBuffer();
@@ -920,33 +892,41 @@ public class Neurite extends Applet implements Runnable {
     message.append(", std=" + Float.toString(sdIntL));
     message.append("\nTerminal length: m=" + Float.toString(mTermL));
     message.append(", std=" + Float.toString(sdTermL));
+    if (adapt != SimContext.FIXED) stepStats();
     message_text.setText(message.toString());
   }
 
 
 
   // Show multiple tree statistics
+  //   - same text as Batch stores (see MorphSummary.results)
   void multTreeStats() {
-    message = new StringBuffer();     
-    message.append("Degree: mean=" + Float.toString(mTerms));
-    message.append(", std=" + Float.toString(sdTerms));
-    message.append("\nAsymmetry: mean=" + Float.toString(mAsym));
-    message.append(", std=" + Float.toString(sdAsym));
-    message.append("\nCentrifugal order: mean=" + Float.toString(mCO));
-    message.append(", std=" + Float.toString(sdCO));
-    message.append("\nTotal length: mean=" + Float.toString(mLength));
-    message.append(", std=" + Float.toString(sdLength));
-    message.append("\nPath length: m=" + Float.toString(mPathL));
-    message.append(", std=" + Float.toString(sdPathL));
-    message.append("\nIntermediate length: m=" + Float.toString(mIntL));
-    message.append(", std=" + Float.toString(sdIntL));
-    message.append("\nTerminal length: m=" + Float.toString(mTermL));
-    message.append(", std=" + Float.toString(sdTermL));
+    message = new StringBuffer(stats.results(nTrees, false));
+    if (adapt != SimContext.FIXED) stepStats();
     message_text.setText(message.toString());
   }
 
 
 
+  // Add adaptive time step summary to message
+  void stepStats() {
+    MorphSummary s = summary;  // streamed trees
+    SimContext c;
+
+    if (s == null) {  // totals of grown trees
+      s = new MorphSummary(0);
+      for (int i = 0; i < nTrees; i++) {
+        c = branches[i].ctx;
+        s.nsteps += c.nsteps;
+        if (c.dtlo < s.dtlo) s.dtlo = c.dtlo;
+        if (c.dthi > s.dthi) s.dthi = c.dthi;
+      };
+    };
+    message.append("\n" + s.stepResults(nTrees));
+  }
+
+
+
   // Store tree data in files
   void storeTreeData(String fstem) {
     try {
@@ -962,15 +942,21 @@ public class Neurite extends Applet implements Runnable {
             storeInfo(fstem+".inf", ADcmTree.DEparams, ADcmTree.Nparams);
             break;
       };
-      storeArray(fstem+"_deg.dat", totTerms, nTrees);
-      storeArray(fstem+"_co.dat", centorder, nTerms);
-      storeArray(fstem+"_asym.dat", asym, nTrees);
-      storeArray(fstem+"_totL.dat", totLength, nTrees);
-      storeArray(fstem+"_termL.dat", termLength, nTerms);
-      storeArray(fstem+"_intL.dat", intLength, nInts);
-      storeArray(fstem+"_pathL.dat", pathLength, nTerms);
+      if (summary != null)  // streamed trees: summary only
+        summary.store(fstem+"_sum.dat");
+      else {
+        Batch.storeArray(fstem+"_deg.dat", totTerms, nTrees);
+        Batch.storeArray(fstem+"_co.dat", centorder, nTerms);
+        Batch.storeArray(fstem+"_asym.dat", asym, nTrees);
+        Batch.storeArray(fstem+"_totL.dat", totLength, nTrees);
+        Batch.storeArray(fstem+"_termL.dat", termLength, nTerms);
+        Batch.storeArray(fstem+"_intL.dat", intLength, nInts);
+        Batch.storeArray(fstem+"_pathL.dat", pathLength, nTerms);
+        if (adapt != SimContext.FIXED)
+          Batch.storeSteps(fstem+"_dt.dat", branches, nTrees);
+      };
 	  if (sTflag == 1)
-          storeArray(fstem+"_termT.dat", mtimeTerm, (int)(Tstop/Tterm)+1);
+          Batch.storeArray(fstem+"_termT.dat", mtimeTerm, (int)(Tstop/Tterm)+1);
     }
     catch(IOException e){};
   }
@@ -997,38 +983,6 @@ public class Neurite extends Applet implements Runnable {
   }
 
 
-
-  // Store an array of float data in a file
-  void storeArray(String fname, float[] adata, int ndata)
-      throws IOException {
-    int i;
-    FileOutputStream fout = null;
-    PrintWriter pout = null;
-
-    fout = new FileOutputStream(fname);
-    pout = new PrintWriter(fout);
-    for (i = 0; i < ndata; i++)
-      pout.println(adata[i]);
-    pout.close();
-  }
-
-
-
-  // Store an array of int data in a file
-  void storeArray(String fname, int[] adata, int ndata)
-      throws IOException {
-    int i;
-    FileOutputStream fout = null;
-    PrintWriter pout = null;
-
-    fout = new FileOutputStream(fname);
-    pout = new PrintWriter(fout);
-    for (i = 0; i < ndata; i++)
-      pout.println(adata[i]);
-    pout.close();
-  }
-
-
 }
 
 
@@ -0,0 +1,257 @@
+/* SimContext.java
+
+Per-tree simulation context
+  - every growing tree owns one context, shared by all of its nodes
+  - holds the model parameters, random number streams, branch key
+    allocator and growth phase that were previously class variables,
+    so that many trees (and parameter sets) can be simulated at the
+    same time without interfering
+  - each model extends this class with its own parameters
+  - also chooses the time step of each tree (fixed or adaptive); the
+    adaptive step is a step-size heuristic, not error control: steps
+    are never rejected and redone
+
+Version 1.0 18-10-26
+*/
+
+
+public class SimContext {
+
+  // random number generators for branching and elongation
+  //   - separate substreams of the tree's own stream (see TreeRandom)
+  public TreeRandom ranp;  // Uniform random number
+  public TreeRandom ranG;  // Gaussian random number
+
+  // Branch keys
+  public int brkey;  // identifying branch key
+                     // normally 1 + no.of branches
+
+  // Parameters common to all models
+  public float dt=1.0f;  // time step
+  public float somaL=1.0f;  // soma length
+  public float somadiam=1.0f;  // soma diameter
+  public float termdiam=1.0f;  // terminal node diameter
+  public float ebp=1.0f;  // branch power for diameter
+  public float Vel=1.0f;  // elongation phase growth rate
+  public float Vbr=1.0f;  // branching phase growth rate
+  public float rCV=1.0f;  // coefficient of variation of rates
+  public double Tbstop=1.0;  // branching stop time
+
+  // Growth phase
+  public float crate=1.0f;  // mean elongation rate
+  public double telong=0;  // time terminals have been elongated to
+
+  // Time step control
+  public static final int FIXED = 0;  // fixed time step dt
+  public static final int STABLE = 1;  // largest stable step
+  public static final int ERROR = 2;  // error-controlled step
+  public int adapt=FIXED;
+  public float dtmax=1.0f;  // maximum (or fixed) time step
+  public float tol=0.001f;  // error tolerance (ERROR mode)
+  public double rmax=0;  // fastest decay rate (stability limit, 0 if none)
+  public double lerr=0;  // local error estimate of last step
+
+  // Step size history (recorded when the step changes by 10% or more)
+  public double[] histT = new double[16];  // time of change
+  public float[] histDt = new float[16];  // new step size
+  public int nhist = 0;
+  public long nsteps = 0;  // number of steps taken
+  public float dtlo=0, dthi=0;  // smallest and largest steps
+  public boolean fused=true;  // fused (single pass) or separate phase steps
+                              // (BESTL only; other models ignore it)
+
+  // Terminal nodes (growth cones), kept up to date on branching
+  public Tree[] terms = new Tree[16];
+  public int nterms = 0;  // number of terminals
+
+  // New branch points since diameters were last updated
+  public Tree[] brpts = new Tree[8];
+  public int nbrpts = 0;
+
+  // Tree nodes in preorder (see Tree.preorder)
+  public Tree[] nodes = new Tree[64];
+  public int[] npar = new int[64];  // index of parent node
+  public int nnodes = 0;
+  public boolean ordered = false;  // nodes up to date
+  Tree[] stack = new Tree[16];  // right branches still to visit
+  int[] spar = new int[16];
+
+  // Node slots in state buffers (see StateBuffer)
+  public int nslots = 0;  // slots handed out
+  int[] freeSlots = new int[8];  // slots of removed nodes
+  int nfree = 0;
+
+
+  // Constructor with fresh (time-based) random streams
+  public SimContext(float dt) {
+    setStreams(new TreeRandom());
+    brkey = 0;
+    this.dt = dt;
+  }
+
+
+  // Seed both random streams, so that the tree grown with this
+  // context can be repeated (e.g. common random numbers when
+  // comparing parameter sets)
+  public void setSeed(long seed) {
+    setStreams(new TreeRandom(seed));
+  }
+
+
+  // Random streams of tree i of a run with a master seed
+  //   - depend only on seed and i, not on the order in which
+  //     trees are made, so parallel and serial runs agree
+  public void setSeed(long seed, int i) {
+    setStreams(TreeRandom.forTree(seed, i));
+  }
+
+
+  private void setStreams(TreeRandom r) {
+    ranp = r.split();  // randomness for branching
+    ranG = r.split();  // randomness for elongation rates
+  }
+
+
+  // Set time step control
+  //   - dt becomes the maximum step; adaptive stepping starts
+  //     from a small step and grows
+  public void setStepping(int adapt, float tol) {
+    this.adapt = adapt;
+    this.tol = tol;
+    dtmax = dt;
+    if (adapt != FIXED) dt = dtmax/1000;
+  }
+
+
+  // Choose the next time step, starting at time t
+  //   - step may at most double each time
+  //   - rmax and lerr are set by the model during each step, so both
+  //     describe the previous step: the new step is guessed from
+  //     them and always taken, even if its error turns out above tol
+  //   - the 0.9 margin on the stable step covers the small change
+  //     in compartment sizes over one step
+  public float nextStep(double t) {
+    float h = dt;
+
+    if (adapt != FIXED) {
+      h = 2*dt;
+      if (adapt == ERROR && lerr > 0)
+        h = dt*(float)Math.min(2.0, Math.max(0.2, 0.9*Math.sqrt(tol/lerr)));
+      if (rmax > 0 && h > 0.9/rmax) h = (float)(0.9/rmax);  // stability limit
+      if (h > dtmax) h = dtmax;
+    };
+    if (nhist == 0 || Math.abs(h-histDt[nhist-1]) >= 0.1f*histDt[nhist-1])
+      addStep(t, h);
+    if (nsteps == 0 || h < dtlo) dtlo = h;
+    if (nsteps == 0 || h > dthi) dthi = h;
+    nsteps++;
+    dt = h;
+    return h;
+  }
+
+
+  // Record step size history
+  private void addStep(double t, float h) {
+    if (nhist == histT.length) {  // history full
+      double[] nt = new double[2*nhist];
+      float[] nd = new float[2*nhist];
+      System.arraycopy(histT, 0, nt, 0, nhist);
+      System.arraycopy(histDt, 0, nd, 0, nhist);
+      histT = nt;
+      histDt = nd;
+    };
+    histT[nhist] = t;
+    histDt[nhist++] = h;
+  }
+
+
+  // Allocate a state buffer slot for a new node
+  //   - slots of removed nodes are used again
+  public int newSlot() {
+    if (nfree > 0) return freeSlots[--nfree];
+    return nslots++;
+  }
+
+
+  // Release the slot of a removed node
+  public void freeSlot(int s) {
+    if (nfree == freeSlots.length) {  // list full
+      int[] nf = new int[2*nfree];
+      System.arraycopy(freeSlots, 0, nf, 0, nfree);
+      freeSlots = nf;
+    };
+    freeSlots[nfree++] = s;
+  }
+
+
+  // Make room for more nodes in preorder
+  void growNodes() {
+    Tree[] nn = new Tree[2*nodes.length];
+    int[] np = new int[2*npar.length];
+
+    System.arraycopy(nodes, 0, nn, 0, nodes.length);
+    System.arraycopy(npar, 0, np, 0, npar.length);
+    nodes = nn;
+    npar = np;
+  }
+
+
+  // Make room for more right branches on traversal stack
+  void growStack() {
+    Tree[] ns = new Tree[2*stack.length];
+    int[] np = new int[2*spar.length];
+
+    System.arraycopy(stack, 0, ns, 0, stack.length);
+    System.arraycopy(spar, 0, np, 0, spar.length);
+    stack = ns;
+    spar = np;
+  }
+
+
+  // Allocate a new branch key
+  public int nextKey() {
+    return brkey++;
+  }
+
+
+  // Add new terminal node to terminal list
+  public void addTerminal(Tree tn) {
+    if (nterms == terms.length) {  // list full
+      Tree[] nt = new Tree[2*terms.length];
+      System.arraycopy(terms, 0, nt, 0, nterms);
+      terms = nt;
+    };
+    tn.tindex = nterms;
+    terms[nterms++] = tn;
+  }
+
+
+  // Replace terminal node (e.g. on branching) by a new terminal
+  //   - new terminal takes the same place in the list
+  public void replaceTerminal(Tree old, Tree tn) {
+    tn.tindex = old.tindex;
+    terms[tn.tindex] = tn;
+    old.tindex = -1;
+  }
+
+
+  // Record new branch point
+  //   - terminal counts are updated at once, diameters are
+  //     updated by the model at the end of the time step
+  public void addBranchPoint(Tree bp) {
+    bp.incTerminals();
+    if (nbrpts == brpts.length) {  // list full
+      Tree[] nb = new Tree[2*brpts.length];
+      System.arraycopy(brpts, 0, nb, 0, nbrpts);
+      brpts = nb;
+    };
+    brpts[nbrpts++] = bp;
+  }
+
+
+  // Get parameter value from data entry
+  public static float param(String[][] par, int i) {
+    return Float.valueOf(par[i][2]).floatValue();
+  }
+
+}
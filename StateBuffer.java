@@ -0,0 +1,72 @@
+/* StateBuffer.java
+
+Current and previous values of a model variable at every node
+  - values are kept in two arrays indexed by node slot (see
+    Tree.slot and SimContext.newSlot)
+  - a time step calculates cur from prev; the arrays are then
+    swapped by reference, so no copy pass over the tree is needed
+  - between time steps the latest values are in prev
+  - a model keeps one buffer for each variable that needs its
+    previous value
+
+Version 1.0 18-10-26
+*/
+
+
+public class StateBuffer {
+
+  public float[] cur;  // values calculated in this time step
+  public float[] prev;  // values at previous time step
+
+
+
+  // Constructor with initial number of slots
+  public StateBuffer(int size) {
+    cur = new float[size];
+    prev = new float[size];
+  }
+
+
+  // Make room for slots 0 to size-1
+  public void ensure(int size) {
+    int ns;
+
+    if (size > cur.length) {
+      ns = Math.max(size, 2*cur.length);
+      cur = grow(cur, ns);
+      prev = grow(prev, ns);
+    };
+  }
+
+
+  private static float[] grow(float[] a, int size) {
+    float[] na = new float[size];
+    System.arraycopy(a, 0, na, 0, a.length);
+    return na;
+  }
+
+
+  // Set current and previous value of slot s
+  public void set(int s, float v) {
+    ensure(s+1);
+    cur[s] = v;
+    prev[s] = v;
+  }
+
+
+  // Scale current and previous value of slot s
+  public void scale(int s, float f) {
+    cur[s] = cur[s] * f;
+    prev[s] = prev[s] * f;
+  }
+
+
+  // Swap current and previous values (end of time step)
+  public void swap() {
+    float[] tmp = prev;
+
+    prev = cur;
+    cur = tmp;
+  }
+
+}
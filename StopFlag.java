@@ -0,0 +1,29 @@
+/* StopFlag.java
+
+Request to stop one run of tree growth (see Ensemble.growTrees)
+  - made by whoever starts the run, before it starts, and set from
+    any thread (e.g. a Stop button); growth threads check it
+    between time steps
+  - once set, stays set: a new run needs a new flag
+
+Version 1.0 18-10-26
+*/
+
+
+public class StopFlag {
+
+  private volatile boolean set = false;
+
+
+  // Ask for growth to stop (trees part-grown are left as they are)
+  public void set() {
+    set = true;
+  }
+
+
+  // Stop has been asked for
+  public boolean isSet() {
+    return set;
+  }
+
+}
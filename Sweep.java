@@ -0,0 +1,410 @@
+/* Sweep.java
+
+Parameter sweeps (command line)
+  - runs a model (from a parameter file) at many points in the
+    space of some of its parameters (DEparams entries):
+      java Sweep [options] file.par name=lo:hi[:n] name=v1,v2,... ...
+    a parameter is named by its symbol (e.g. B, E, S, Kbr, D, a),
+    its label or its number in the model parameters (from 1)
+  - designs: full grid (n levels between lo and hi, or the listed
+    values), Latin hypercube or Sobol sequence (given number of
+    points within the ranges)
+  - every (point, tree) pair is one unit of work on a shared pool
+    (see Ensemble), so large sweeps keep every processor busy;
+    trees are summarised as they finish (see MorphSummary)
+  - results go into one table, one line per point and measure:
+    point, parameter values, measure, n, mean, std, min, 5, 25,
+    50, 75 and 95% quantiles, max
+  - options:
+      -t threads   worker threads (default all processors)
+      -n trees     trees per point (default from parameter file)
+      -design d    grid (default), lhs or sobol
+      -points N    number of points for lhs and sobol (default 64)
+      -levels L    default grid levels per parameter (default 5)
+      -seed s      random seed for lhs (default 1)
+      -o file      results table (default <stem>_sweep.dat)
+
+Version 1.0 18-10-26
+*/
+
+import java.io.*;
+
+
+public class Sweep {
+
+  public static final int GRID = 0;
+  public static final int LHS = 1;
+  public static final int SOBOL = 2;
+
+  Batch base;  // simulation settings and base parameter values
+  String[][] par;  // base model parameters
+  int npar;
+
+  // Swept parameters
+  int nvars = 0;
+  String[] vname = new String[8];  // name as given
+  int[] vindex = new int[8];  // index in model parameters
+  double[] vlo = new double[8], vhi = new double[8];  // range
+  int[] vlevels = new int[8];  // grid levels (0 = default)
+  double[][] vlist = new double[8][];  // listed grid values (or null)
+
+  // Design points and results
+  int npoints = 0;
+  double[][] points;  // [point][variable]
+  MorphSummary[] results;
+  boolean seeded = false;  // trees seeded (common random numbers)
+  long seed = 0;  // master seed (see TreeRandom.forTree)
+
+
+
+  // Run a sweep from the command line
+  public static void main(String args[]) {
+    Sweep sw;
+    String fout = null;
+    int nthreads = Runtime.getRuntime().availableProcessors();
+    int ntrees = 0, design = GRID, np = 64, levels = 5, i;
+    long seed = 1, t0;
+
+    for (i = 0; i < args.length && args[i].startsWith("-") && args[i].indexOf('=') < 0; i += 2) {
+      if (i+1 >= args.length) usage();
+      if (args[i].equals("-t"))
+        nthreads = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-n"))
+        ntrees = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-design")) {
+        if (args[i+1].equals("grid")) design = GRID;
+        else if (args[i+1].equals("lhs")) design = LHS;
+        else if (args[i+1].equals("sobol")) design = SOBOL;
+        else usage();
+      }
+      else if (args[i].equals("-points"))
+        np = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-levels"))
+        levels = Integer.parseInt(args[i+1]);
+      else if (args[i].equals("-seed"))
+        seed = Long.parseLong(args[i+1]);
+      else if (args[i].equals("-o"))
+        fout = args[i+1];
+      else
+        usage();
+    };
+    if (i >= args.length-1) usage();
+
+    t0 = System.currentTimeMillis();
+    try {
+      sw = new Sweep(args[i]);
+      for (i++; i < args.length; i++) sw.addVar(args[i]);
+      if (ntrees > 0) sw.base.nTrees = ntrees;
+      switch (design) {
+        case GRID:
+        default:
+          sw.grid(levels);
+          break;
+        case LHS:
+          sw.latin(np, seed);
+          break;
+        case SOBOL:
+          sw.sobol(np);
+          break;
+      };
+      sw.run(new Ensemble(nthreads));
+      if (fout == null) fout = sw.base.fSstem+"_sweep.dat";
+      sw.store(fout);
+    }
+    catch(IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+      return;
+    }
+    catch(IllegalArgumentException e) {  // also bad numbers
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    };
+    System.out.println(sw.npoints+" points x "+sw.base.nTrees+" trees, "
+      +(System.currentTimeMillis()-t0)+" ms -> "+fout);
+  }
+
+
+  private static void usage() {
+    System.err.println("Usage: java Sweep [-t threads] [-n trees] [-design grid|lhs|sobol]"
+      +" [-points N] [-levels L] [-seed s] [-o file] file.par name=lo:hi[:n] name=v1,v2,... ...");
+    System.exit(2);
+  }
+
+
+
+  // Constructor with base parameter file
+  public Sweep(String fname)
+      throws IOException {
+    base = new Batch();
+    base.load(fname);
+    par = Batch.copyParams(Batch.modelParams(base.tree_type));
+    npar = Batch.modelNparams(base.tree_type);
+    seeded = (base.seed != 0);
+    seed = base.seed;
+  }
+
+
+  // Add a swept parameter: name=lo:hi, name=lo:hi:levels or
+  // name=v1,v2,...
+  public void addVar(String spec) {
+    int eq = spec.indexOf('=');
+    String name, range;
+    String[] f;
+
+    if (eq <= 0) throw new IllegalArgumentException("Bad parameter range: "+spec);
+    name = spec.substring(0, eq);
+    range = spec.substring(eq+1);
+    if (nvars == vname.length) growVars();
+    vindex[nvars] = Batch.findParam(par, npar, name);
+    if (vindex[nvars] < 0) throw new IllegalArgumentException("No model parameter "+name);
+    vname[nvars] = name;
+    vlist[nvars] = null;
+    vlevels[nvars] = 0;
+    if (range.indexOf(',') >= 0) {  // list of values
+      f = range.split(",");
+      vlist[nvars] = new double[f.length];
+      for (int i = 0; i < f.length; i++) vlist[nvars][i] = Double.parseDouble(f[i]);
+      vlo[nvars] = vlist[nvars][0];
+      vhi[nvars] = vlist[nvars][f.length-1];
+    }
+    else {  // range
+      f = range.split(":");
+      if (f.length < 2 || f.length > 3) throw new IllegalArgumentException("Bad parameter range: "+spec);
+      vlo[nvars] = Double.parseDouble(f[0]);
+      vhi[nvars] = Double.parseDouble(f[1]);
+      if (!(vlo[nvars] < vhi[nvars])) throw new IllegalArgumentException("Empty parameter range: "+spec);
+      if (f.length == 3) vlevels[nvars] = Integer.parseInt(f[2]);
+    };
+    nvars++;
+  }
+
+
+  private void growVars() {
+    int n = 2*nvars;
+    String[] nn = new String[n];
+    int[] ni = new int[n], nl = new int[n];
+    double[] nlo = new double[n], nhi = new double[n];
+    double[][] nv = new double[n][];
+
+    System.arraycopy(vname, 0, nn, 0, nvars);
+    System.arraycopy(vindex, 0, ni, 0, nvars);
+    System.arraycopy(vlevels, 0, nl, 0, nvars);
+    System.arraycopy(vlo, 0, nlo, 0, nvars);
+    System.arraycopy(vhi, 0, nhi, 0, nvars);
+    System.arraycopy(vlist, 0, nv, 0, nvars);
+    vname = nn;
+    vindex = ni;
+    vlevels = nl;
+    vlo = nlo;
+    vhi = nhi;
+    vlist = nv;
+  }
+
+
+
+  // Designs
+
+  // Full grid: every combination of the levels of each parameter
+  //   - first parameter varies slowest
+  public void grid(int levels) {
+    int[] nl = new int[nvars];
+    int k;
+
+    npoints = 1;
+    for (int j = 0; j < nvars; j++) {
+      if (vlist[j] != null) nl[j] = vlist[j].length;
+      else nl[j] = (vlevels[j] > 0) ? vlevels[j] : levels;
+      npoints *= nl[j];
+    };
+    points = new double[npoints][nvars];
+    for (int p = 0; p < npoints; p++) {
+      k = p;
+      for (int j = nvars-1; j >= 0; j--) {
+        points[p][j] = level(j, k % nl[j], nl[j]);
+        k /= nl[j];
+      };
+    };
+  }
+
+
+  // Value of level l of n of parameter j
+  private double level(int j, int l, int n) {
+    if (vlist[j] != null) return vlist[j][l];
+    if (n == 1) return vlo[j];
+    return vlo[j] + (vhi[j]-vlo[j]) * l / (n-1);
+  }
+
+
+  // Latin hypercube: n points, one in each of n equal slices of
+  // every parameter range
+  public void latin(int n, long seed) {
+    TreeRandom ran = new TreeRandom(seed);
+    int[] perm = new int[n];
+    int k, tmp;
+
+    npoints = n;
+    points = new double[n][nvars];
+    for (int j = 0; j < nvars; j++) {
+      for (int i = 0; i < n; i++) perm[i] = i;
+      for (int i = n-1; i > 0; i--) {  // random permutation of slices
+        k = ran.nextInt(i+1);
+        tmp = perm[i];
+        perm[i] = perm[k];
+        perm[k] = tmp;
+      };
+      for (int i = 0; i < n; i++)
+        points[i][j] = vlo[j] + (vhi[j]-vlo[j]) * (perm[i] + ran.nextDouble()) / n;
+    };
+  }
+
+
+  // Sobol sequence: first n points (after 0) scaled to the ranges
+  public void sobol(int n) {
+    double[][] u = sobolPoints(n, nvars);
+
+    npoints = n;
+    points = new double[n][nvars];
+    for (int i = 0; i < n; i++)
+      for (int j = 0; j < nvars; j++)
+        points[i][j] = vlo[j] + (vhi[j]-vlo[j]) * u[i][j];
+  }
+
+
+  // Direction numbers of Sobol dimensions 2 to 13 (Joe and Kuo,
+  // 2008): polynomial degree s, coefficients a, initial m values
+  private static final int[] SOBOL_S = {1, 2, 3, 3, 4, 4, 5, 5, 5, 5, 5, 5};
+  private static final int[] SOBOL_A = {0, 1, 1, 2, 1, 4, 2, 4, 7, 11, 13, 14};
+  private static final int[][] SOBOL_M = {
+    {1}, {1, 3}, {1, 3, 1}, {1, 1, 1}, {1, 1, 3, 3}, {1, 3, 5, 13},
+    {1, 1, 5, 5, 17}, {1, 1, 5, 5, 5}, {1, 1, 7, 11, 19}, {1, 1, 5, 1, 1},
+    {1, 1, 1, 3, 11}, {1, 3, 5, 5, 31}};
+  public static final int SOBOL_DIMS = 13;
+
+
+  // First n points (after 0) of the Sobol sequence in dims
+  // dimensions, in the unit cube (Gray code order)
+  static double[][] sobolPoints(int n, int dims) {
+    long[][] v = new long[dims][32];  // direction numbers (32 bits)
+    long[] x = new long[dims];
+    double[][] u = new double[n][dims];
+    int s, a, c;
+
+    if (dims > SOBOL_DIMS)
+      throw new IllegalArgumentException("Sobol design limited to "+SOBOL_DIMS+" parameters");
+    for (int k = 0; k < 32; k++) v[0][k] = 1L << (31-k);
+    for (int d = 1; d < dims; d++) {
+      s = SOBOL_S[d-1];
+      a = SOBOL_A[d-1];
+      for (int k = 0; k < 32; k++) {
+        if (k < s)
+          v[d][k] = (long)SOBOL_M[d-1][k] << (31-k);
+        else {
+          v[d][k] = v[d][k-s] ^ (v[d][k-s] >> s);
+          for (int j = 1; j < s; j++)
+            if (((a >> (s-1-j)) & 1) != 0) v[d][k] ^= v[d][k-j];
+        };
+      };
+    };
+    for (int i = 0; i < n; i++) {
+      c = Long.numberOfTrailingZeros(~(long)i);  // lowest zero bit of i
+      for (int d = 0; d < dims; d++) {
+        x[d] ^= v[d][c];
+        u[i][d] = (double)x[d] / 4294967296.0;
+      };
+    };
+    return u;
+  }
+
+
+
+  // Running
+
+  // Model parameters at point p
+  String[][] pointParams(int p) {
+    String[][] pp = Batch.copyParams(par);
+
+    for (int j = 0; j < nvars; j++)
+      pp[vindex[j]][2] = format(points[p][j]);
+    return pp;
+  }
+
+
+  // Parameter value as text (whole numbers without decimals, as
+  // some parameters are read as integers)
+  static String format(double v) {
+    if (v == Math.rint(v) && Math.abs(v) < 1e9) return Long.toString((long)v);
+    return Float.toString((float)v);
+  }
+
+
+  // Grow base.nTrees trees at every point
+  public void run(Ensemble ens) {
+    run(ens, 0, base.nTrees);
+  }
+
+
+  // Grow trees first to first+ntrees-1 at every point (e.g. the
+  // rest of the trees of points worth finishing)
+  //   - if seeded, tree i at every point has the same random
+  //     streams (common random numbers)
+  public void run(Ensemble ens, int first, int ntrees) {
+    TreeSource[] srcs = new TreeSource[npoints];
+
+    results = new MorphSummary[npoints];
+    for (int p = 0; p < npoints; p++) {
+      results[p] = new MorphSummary(0);
+      srcs[p] = new PointSource(base, pointParams(p), first, seeded, seed);
+    };
+    ens.growTrees(srcs, ntrees, base.Tstop, results, base.Tterm);
+  }
+
+
+  // Store results table
+  public void store(String fname)
+      throws IOException {
+    PrintWriter pout = new PrintWriter(new FileOutputStream(fname));
+    StringBuffer head = new StringBuffer("# point");
+    StringBuffer pre;
+
+    for (int j = 0; j < nvars; j++) head.append(" "+vname[j]);
+    head.append(" measure n mean std min q05 q25 q50 q75 q95 max");
+    pout.println(head.toString());
+    for (int p = 0; p < npoints; p++) {
+      pre = new StringBuffer(Integer.toString(p));
+      for (int j = 0; j < nvars; j++) pre.append(" "+(float)points[p][j]);
+      pre.append(" ");
+      results[p].print(pout, pre.toString());
+    };
+    pout.close();
+  }
+
+}
+
+
+
+// Maker of trees with the parameters of one sweep point
+class PointSource implements TreeSource {
+
+  private Batch b;  // simulation settings
+  private String[][] par;  // model parameters
+  private int first;  // index of first tree
+  private boolean seeded;  // tree i has the streams of tree first+i
+  private long seed;  // master seed
+
+
+  public PointSource(Batch b, String[][] par, int first, boolean seeded, long seed) {
+    this.b = b;
+    this.par = par;
+    this.first = first;
+    this.seeded = seeded;
+    this.seed = seed;
+  }
+
+
+  public Tree newTree(int i) {
+    return Batch.newTree(b.tree_type, par, b.dt, b.adapt, b.dttol, b.fusedfl, seeded ? seed : 0, first+i);
+  }
+
+}
@@ -192,14 +192,14 @@ public class TermPlot extends Frame {
     int x, y, starti=1;
 
     // get data
-    termV = new float[Tree.brkey];
+    termV = new float[br.ctx.brkey];
     for (int i=0; i < termV.length; i++) termV[i]=0;
     br.termValues(termV, pname);
 
     // plot data 
     x = dispoffx + (int)((dispw-(2*dispoffx))*t/Tstop);
     if (somafl == 1) starti = 0;  // include soma
-    for (int i=starti; i < Tree.brkey; i++) {
+    for (int i=starti; i < br.ctx.brkey; i++) {
       if (termV[i] > 0) {
         y = disph - dispoffy - (int)((disph-(2*dispoffy))*termV[i]/maxv);
         g.setColor(collist[i%collist.length]);
@@ -216,21 +216,21 @@ public class TermPlot extends Frame {
 
     try {
       // open new files, if necessary
-      if (Tree.brkey > nTerms && Tree.brkey <= maxfP) {
-        for (int i = nTerms; i < Tree.brkey; i++) {
+      if (br.ctx.brkey > nTerms && br.ctx.brkey <= maxfP) {
+        for (int i = nTerms; i < br.ctx.brkey; i++) {
           fP[i] = new FileOutputStream(fPstem+"_"+i+"_"+pname+".dat");
           pP[i] = new PrintWriter(fP[i]);
         };
-        nTerms = Tree.brkey;  // includes soma (key=0)
+        nTerms = br.ctx.brkey;  // includes soma (key=0)
       };
 
       // get data
-      termV = new float[Tree.brkey];
+      termV = new float[br.ctx.brkey];
       for (int i=0; i < termV.length; i++) termV[i]=0;
       br.termValues(termV, pname);
 
       // save data
-      for (int i=0; i < Tree.brkey && i < maxfP; i++) {  // incl. soma
+      for (int i=0; i < br.ctx.brkey && i < maxfP; i++) {  // incl. soma
         pP[i].print(t);
         pP[i].print(" ");
         pP[i].println(termV[i]);
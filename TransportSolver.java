@@ -0,0 +1,188 @@
+/* TransportSolver.java
+
+Solver for transport of a chemical along a branched tree
+  - compartments are numbered so that the parent of compartment i
+    always has an index less than i (soma is 0)
+  - concentration C in each compartment changes by
+    - diffusive and active transfer across the link to its parent
+      (coefficients gd, ga, set on the child compartment)
+        flux into child = gd*(Cparent - C) + ga*Cparent
+      taken from (or given to) the parent
+    - production s and decay k*C
+    - all divided by compartment volume vol (except s and k)
+  - each time step solves the linear system for the new values
+    by Gaussian elimination over the tree (Hines' method) in O(n)
+    - backward Euler or Crank-Nicolson
+    - stable for time steps far larger than the explicit update
+    - Crank-Nicolson is second order, but damps fast transients
+      (e.g. after branching) only weakly at large time steps
+    - the explicit (forward Euler) update is also available, for
+      use with adaptive time steps
+  - each solve also gives
+    - the fastest decay rate of any compartment (rmax); the
+      explicit update is stable for dt < 1/rmax
+    - optionally an estimate of the local error of the step
+      (half the change in rate of change over the step, times dt)
+
+Version 1.0 18-10-26
+*/
+
+
+public class TransportSolver {
+
+  // Integration methods
+  public static final int EXPLICIT = 0;  // forward Euler
+  public static final int BACKWARD_EULER = 1;
+  public static final int CRANK_NICOLSON = 2;
+
+  // Compartment coefficients (set by the model)
+  public int n;  // number of compartments
+  public int[] par;  // parent index (-1 for soma)
+  public float[] vol;  // volume
+  public float[] gd;  // diffusive coupling to parent
+  public float[] ga;  // active transport from parent
+  public float[] k;  // decay rate
+  public float[] s;  // production rate
+
+  // Concentration buffers (for models without their own arrays)
+  public float[] cin;  // values at previous time step
+  public float[] cout;  // new values
+
+  // Step results
+  public double rmax;  // fastest decay rate in any compartment
+  public boolean estimate=false;  // estimate local error
+  public double err;  // local error estimate (relative to 1+C)
+
+  // Work arrays for elimination
+  private double[] diag, up, lo, rhs;
+  private double[] rate, fo, fn;  // decay rates, rates of change
+
+
+  // Constructor with initial capacity
+  public TransportSolver(int size) {
+    allocate(size);
+  }
+
+
+  // Set number of compartments
+  //   - coefficient arrays are enlarged if necessary and cleared
+  public void setSize(int nc) {
+    if (nc > par.length) allocate(2*nc);
+    n = nc;
+    for (int i = 0; i < n; i++) {
+      gd[i] = 0;
+      ga[i] = 0;
+      k[i] = 0;
+      s[i] = 0;
+    };
+  }
+
+
+  private void allocate(int size) {
+    par = new int[size];
+    vol = new float[size];
+    gd = new float[size];
+    ga = new float[size];
+    k = new float[size];
+    s = new float[size];
+    cin = new float[size];
+    cout = new float[size];
+    diag = new double[size];
+    up = new double[size];
+    lo = new double[size];
+    rhs = new double[size];
+    rate = new double[size];
+    fo = new double[size];
+    fn = new double[size];
+  }
+
+
+  // Advance concentrations Cp by one time step dt into C
+  //   - method is EXPLICIT, BACKWARD_EULER or CRANK_NICOLSON
+  //   - negative concentrations are set to zero
+  public void solve(float[] Cp, float[] C, float dt, int method) {
+    double th;  // implicit weight
+    double ex;  // explicit weight
+    double f, fc, fp;
+    int i, p;
+
+    if (method == CRANK_NICOLSON) th = 0.5;
+    else if (method == EXPLICIT) th = 0;
+    else th = 1.0;
+    ex = 1.0 - th;
+
+    // diagonal, production, decay and explicit part of rhs
+    for (i = 0; i < n; i++) {
+      diag[i] = 1.0 + th*dt*k[i];
+      rhs[i] = Cp[i] + dt*(s[i] - ex*k[i]*Cp[i]);
+      rate[i] = k[i];
+    };
+
+    // transfer across each parent-child link
+    //   - up: coefficient of parent in child's equation
+    //   - lo: coefficient of child in parent's equation
+    for (i = 1; i < n; i++) {
+      p = par[i];
+      f = gd[i]*((double)Cp[p] - Cp[i]) + ga[i]*(double)Cp[p];  // flux into child
+      rhs[i] += ex*dt*f/vol[i];
+      rhs[p] -= ex*dt*f/vol[p];
+      fc = th*dt/vol[i];
+      fp = th*dt/vol[p];
+      diag[i] += fc*gd[i];
+      up[i] = -fc*(gd[i]+ga[i]);
+      diag[p] += fp*(gd[i]+ga[i]);
+      lo[i] = -fp*gd[i];
+      rate[i] += gd[i]/vol[i];
+      rate[p] += (gd[i]+ga[i])/vol[p];
+    };
+    rmax = 0;
+    for (i = 0; i < n; i++)
+      if (rate[i] > rmax) rmax = rate[i];
+
+    // eliminate children from their parents' equations (leaves first)
+    for (i = n-1; i > 0; i--) {
+      p = par[i];
+      f = lo[i] / diag[i];
+      diag[p] -= f*up[i];
+      rhs[p] -= f*rhs[i];
+    };
+
+    // back-substitute from the soma outwards
+    rhs[0] = rhs[0] / diag[0];
+    for (i = 1; i < n; i++)
+      rhs[i] = (rhs[i] - up[i]*rhs[par[i]]) / diag[i];
+    for (i = 0; i < n; i++) {
+      C[i] = (float)rhs[i];
+      if (C[i] < 0) C[i] = 0;  // cannot have negative concentrations
+    };
+
+    // local error from change in rates of change over the step
+    if (estimate) {
+      rates(Cp, fo);
+      rates(C, fn);
+      err = 0;
+      for (i = 0; i < n; i++) {
+        f = 0.5*dt*Math.abs(fn[i]-fo[i]) / (1.0+C[i]);
+        if (f > err) err = f;
+      };
+    };
+
+  }
+
+
+  // Rates of change of concentrations C
+  private void rates(float[] C, double[] dC) {
+    double f;
+    int i, p;
+
+    for (i = 0; i < n; i++)
+      dC[i] = s[i] - k[i]*C[i];
+    for (i = 1; i < n; i++) {
+      p = par[i];
+      f = gd[i]*((double)C[p] - C[i]) + ga[i]*(double)C[p];  // flux into child
+      dC[i] += f/vol[i];
+      dC[p] -= f/vol[p];
+    };
+  }
+
+}
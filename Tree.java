@@ -16,7 +16,6 @@ BPG 26-11-99 updated to use Graphics2D
 BPG 28-9-99
 */
 
-import java.awt.*;
 import java.lang.Math;
 import java.lang.Thread;
 import java.io.*;
@@ -25,10 +24,6 @@ import java.io.*;
 // Public generic binary tree class
 public class Tree {
 
-  // Public class variables
-  public static int brkey;	// identifying branch key
-                                // normally 1 + no.of branches
-
   // Public instance variables
   // Basic
   public String name;
@@ -40,17 +35,15 @@ public class Tree {
   public float length;  // length
   public float diam;  // diameter
   public float pathlength;  // path length to segment
-  // Graphics
-  public int locx;  // x-coord for screen drawing
-  public int locy;  // y-coord for screen drawing
+  public SimContext ctx;  // per-tree simulation state (shared by all nodes)
+  public int tindex=-1;  // position in terminal list (-1 if not terminal)
+  public int slot=-1;  // index in tree's state buffers (see StateBuffer)
+  public int nterm=1;  // number of terminals in (sub)tree
   // File IO
   public FileOutputStream fout;
   public PrintWriter pout;
 
   // Class variables for housekeeping and graphics
-  public static int currx;  // current x position
-  public static int curry;  // current y position
-  public static float scalex;  // x-scaling (for drawing)
   public static int incx;  // increment in x per node (for printing)
   public static int incy;  // increment in y per node (for both)
   public static float bangle;  // branch angle (for real drawing)
@@ -63,6 +56,8 @@ public class Tree {
   public static String tname;	// tree class name
   public static int fstore=0;  // flag to indicate "store data"
 
+  private static final TreeVar[] NOVARS = new TreeVar[0];
+
 
   // Basic tree constructors
   // More complex constructors are contained in subclasses
@@ -81,6 +76,10 @@ public class Tree {
   public Tree(Tree parent) {
     this();  // basic constructor
     this.parent = parent;
+    if (parent != null)
+      ctx = parent.ctx;  // nodes share their tree's state
+    if (ctx != null)
+      ctx.ordered = false;  // tree changes shape
   }
 
 
@@ -103,177 +102,222 @@ public class Tree {
 
   // Tree housekeeping methods
 
+  // Store nodes in preorder (parents before their children)
+  //   - nodes go into the tree's context (ctx.nodes), with the
+  //     index of each node's parent in ctx.npar (-1 for this node)
+  //   - an explicit stack is used, so long unbranched neurites
+  //     (e.g. chains of ADcm compartments) cannot overflow the
+  //     thread stack
+  //   - kept until the tree changes shape
+  //   - returns number of nodes
+  public int preorder() {
+    SimContext c = ctx;
+    Tree nd;
+    int n = 0, sp = 0, p;
+
+    if (c.ordered && c.nodes[0] == this) return c.nnodes;
+    c.stack[sp] = this;
+    c.spar[sp++] = -1;
+    while (sp > 0) {
+      nd = c.stack[--sp];
+      p = c.spar[sp];
+      c.stack[sp] = null;
+      while (nd != null) {  // follow left branches
+        if (n == c.nodes.length) c.growNodes();
+        c.nodes[n] = nd;
+        c.npar[n] = p;
+        p = n++;
+        if (nd.rtree != null) {  // right branch later
+          if (sp == c.stack.length) c.growStack();
+          c.stack[sp] = nd.rtree;
+          c.spar[sp++] = p;
+        };
+        nd = nd.ltree;
+      };
+    };
+    c.nnodes = n;
+    c.ordered = true;
+    return n;
+  }
+
+
   // Count segments in tree
+  //   - terminal and branching nodes each end a segment
   public int countSegments() {
-    if (ltree == null && rtree == null)
-      return 1;
-    else if (rtree == null)
-      return ltree.countSegments();
-    else
-      return 1 + ltree.countSegments() + rtree.countSegments();
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder(), ns = 0;
+
+    for (int i = 0; i < nn; i++)
+      if (nodes[i].rtree != null || nodes[i].ltree == null) ns++;
+    return ns;
+  }
+
+
+  // Count nodes (compartments) in tree
+  public int countNodes() {
+    return preorder();
   }
 
 
   // Count terminal nodes in tree
+  //   - cached count, kept up to date as branches are created
   public int countTerminals() {
-    if (ltree == null && rtree == null)
-      return 1;
-    else if (rtree == null)
-      return ltree.countTerminals();
-    else
-      return ltree.countTerminals() + rtree.countTerminals();
+    return nterm;
+  }
+
+
+  // Update terminal counts for new branch at this node
+  //   - one terminal is added to this node and all nodes
+  //     on the path to the root
+  public void incTerminals() {
+    for (Tree p = this; p != null; p = p.parent)
+      p.nterm++;
   }
 
 
   // Store terminal values (indexed by key)
   public void termValues(float[] termV, String pname) {
+    termValues(termV, findVar(pname));
+  }
+
+
+  // Store terminal values of variable v (indexed by key)
+  public void termValues(float[] termV, TreeVar v) {
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+    Tree nd;
+
     if (parent == null)  // soma
-      termV[key] = getValue(pname);
-    if (ltree == null && rtree == null) {
-      if (termV.length > key)
-        termV[key] = getValue(pname);  // store terminal value
+      termV[key] = v.get(this);
+    for (int i = 0; i < nn; i++) {
+      nd = nodes[i];
+      if (nd.ltree == null && nd.rtree == null && termV.length > nd.key)
+        termV[nd.key] = v.get(nd);  // store terminal value
     };
-    if (ltree != null) ltree.termValues(termV, pname);
-    if (rtree != null) rtree.termValues(termV, pname);
- }
+  }
 
 
   // Calculate total path length in tree
+  //   - soma not included
   public float totPathLength() {
-    if (parent == null) // soma not included
-      return ltree.totPathLength();
-    else if (ltree == null && rtree == null)
-      return length;
-    else if (rtree == null)
-      return ltree.totPathLength() + length;
-    else
-      return length + ltree.totPathLength() + rtree.totPathLength();
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+    float tl = 0;
+
+    for (int i = (parent == null) ? 1 : 0; i < nn; i++)
+      tl += nodes[i].length;
+    return tl;
   }
 
 
   // Find maximum path length in tree
+  //   - also sets path length to every node
   public float maxPathLength() {
-    float lpath, rpath;
-
-    if (parent == null)  // soma not included
-      pathlength = 0;
-//      pathlength = length;
-    else
-      pathlength = parent.pathlength + length;
-    if (ltree == null && rtree == null) {
-      return(pathlength);
-    }
-    else if (rtree == null)
-      return ltree.maxPathLength();
-    else {
-      lpath = ltree.maxPathLength();
-      rpath = rtree.maxPathLength();
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+    float mpath = 0;
+    Tree nd;
+
+    for (int i = 0; i < nn; i++) {  // parents come first
+      nd = nodes[i];
+      if (nd.parent == null)  // soma not included
+        nd.pathlength = 0;
+      else
+        nd.pathlength = nd.parent.pathlength + nd.length;
+      if (nd.ltree == null && nd.rtree == null && nd.pathlength > mpath)
+        mpath = nd.pathlength;
     };
-    if (lpath > rpath) return lpath;
-    else return rpath;
+    return mpath;
   }
 
 
   // Store terminal path lengths
   public int termLengths(float[] termL, int i) {
-    if (ltree == null && rtree == null) {
-      termL[i] = length;  // store terminal length
-      return i+1;
-    }
-    else if (rtree == null)
-      return ltree.termLengths(termL, i);
-    else
-      return rtree.termLengths(termL, ltree.termLengths(termL, i));
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+
+    for (int k = 0; k < nn; k++)
+      if (nodes[k].ltree == null && nodes[k].rtree == null)
+        termL[i++] = nodes[k].length;  // store terminal length
+    return i;
   }
 
 
   // Store intermediate path lengths (NOT QUITE RIGHT)
   public int intLengths(float[] intL, int i) {
-    if (ltree == null && rtree == null)
-      return i;
-    else if (ltree != null && rtree != null) {
-      intL[i] = length;  // store intermediate length
-      return rtree.intLengths(intL, ltree.intLengths(intL, i+1));
-    }
-    else if (ltree == null && rtree != null)
-      return rtree.intLengths(intL, i);
-    else
-      return ltree.intLengths(intL, i);
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+
+    for (int k = 0; k < nn; k++)
+      if (nodes[k].ltree != null && nodes[k].rtree != null)
+        intL[i++] = nodes[k].length;  // store intermediate length
+    return i;
   }
 
 
   // Store all path lengths
+  //   - path lengths are set by maxPathLength
   public int pathLengths(float[] pathL, int i) {
-    if (ltree == null && rtree == null) {
-      pathL[i] = pathlength;  // store path length
-      return i+1;
-    }
-    else if (ltree == null)
-      return rtree.pathLengths(pathL, i);
-    else if (rtree == null)
-      return ltree.pathLengths(pathL, i);
-    else
-      return rtree.pathLengths(pathL, ltree.pathLengths(pathL, i));
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+
+    for (int k = 0; k < nn; k++)
+      if (nodes[k].ltree == null && nodes[k].rtree == null)
+        pathL[i++] = nodes[k].pathlength;  // store path length
+    return i;
   }
 
 
   // Store centrifugal orders
   public int centOrders(int[] centO, int i) {
-    if (ltree == null && rtree == null) {
-      centO[i] = order;  // store centrifugal order
-      return i+1;
-    }
-    else if (rtree == null)
-      return ltree.centOrders(centO, i);
-    else
-      return rtree.centOrders(centO, ltree.centOrders(centO, i));
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+
+    for (int k = 0; k < nn; k++)
+      if (nodes[k].ltree == null && nodes[k].rtree == null)
+        centO[i++] = nodes[k].order;  // store centrifugal order
+    return i;
   }
 
 
   // Find maximum centrifugal order in tree
   public int maxOrder() {
-    if (ltree == null && rtree == null) {
-      return order;  // terminal order
-    }
-    else if (rtree == null)
-      return ltree.maxOrder();
-    else return Math.max(ltree.maxOrder(), rtree.maxOrder());
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder(), mo = 0;
+
+    for (int k = 0; k < nn; k++)
+      if (nodes[k].ltree == null && nodes[k].rtree == null)
+        mo = Math.max(mo, nodes[k].order);  // terminal order
+    return mo;
   }
 
 
   // Calculate asymmetry partition of tree
+  //   - sum of partitions at branch points
   public float asymPart() {
-    int nTerms, lnTerms, rnTerms;
-    float currPart;
-
-    lnTerms = 0;
-    rnTerms = 0;
-    nTerms = countTerminals();
-    if (nTerms == 1) {
-      return 0;
-    }
-    else if (rtree == null)  // continuation of branch
-      return(ltree.asymPart());
-    else {
-      lnTerms = ltree.countTerminals();
-      rnTerms = rtree.countTerminals();
+    Tree[] nodes = ctx.nodes;
+    int nn = preorder();
+    int lnTerms, rnTerms;
+    float part = 0;
+
+    for (int k = 0; k < nn; k++) {
+      if (nodes[k].ltree == null || nodes[k].rtree == null) continue;
+      lnTerms = nodes[k].ltree.nterm;
+      rnTerms = nodes[k].rtree.nterm;
+      if (lnTerms == 1 && rnTerms == 1) continue;
+      part += (float)Math.abs(lnTerms-rnTerms) / (float)(lnTerms+rnTerms-2);
     };
-    if (lnTerms == 1 && rnTerms == 1)
-      return 0;
-    currPart = (float)Math.abs(lnTerms-rnTerms) / (float)(lnTerms+rnTerms-2);
-    return(currPart + ltree.asymPart() + rtree.asymPart());
+    return part;
   }
 
 
   // Calculate asymmetry of tree
   public float asymIndex() {
-    int nTerms;
 
-    nTerms = countTerminals();
-    if (nTerms == 1) {
+    if (nterm == 1) {
       return 0;
     }
-    else return(asymPart() / (float)(nTerms-1));
+    else return(asymPart() / (float)(nterm-1));
   }
 
 
@@ -297,120 +341,57 @@ public class Tree {
   public void updateTree(double t) {
   }
 
-  // Get variable value
-  public float getValue(String vname) {
-    return 0f;
+  // Bring tree nodes up to date before display or statistics
+  //   - for models that keep their state outside the Tree nodes
+  public void syncTree() {
   }
 
-  // Get terminal parameter value
-  public float termValue() {
-    return 0f;
+  // Tree only elongates from time t (no branching or other change)
+  //   - growth may then jump straight to the end time
+  public boolean passive(double t) {
+    return false;
   }
 
+  // Advance tree by one time step
+  public void stepTree(double t) {
+    branchTree(t);
+    elongateTree(t);
+    diamTree(t);
+    updateTree(t);
+  }
 
+  // Variables that may be displayed, plotted or stored
+  //   - each model returns its own (shared) list
+  public TreeVar[] variables() {
+    return NOVARS;
+  }
 
-  // Methods for displaying trees
-
-  // Display colour tree with active parameter value
-  public void displayTree(Graphics g, int x0, int y0, int dw, int dh, String pname, float pmaxval) {
-    // (x0, y0) is the top left-hand corner of display area
-    // dh, dw are the height and width of the display area
+  // Find variable by name (NONE if unknown)
+  public TreeVar findVar(String vname) {
+    TreeVar[] vars = variables();
 
-    // Display tree
-    Tree.currx = x0;
-    Tree.curry = y0 + (dh / 2);  // middle height
-    Tree.scalex = (float)dw / maxLength;
-    drawRealTree(g, bangle, pname, pmaxval);
-    try {Thread.sleep(drawdel);} catch(InterruptedException eIE){};
+    for (int i = 0; i < vars.length; i++)
+      if (vars[i].name.equals(vname)) return vars[i];
+    return TreeVar.NONE;
+  }
 
+  // Get variable value by name
+  //   - looks the name up on every call; use findVar in loops
+  public float getValue(String vname) {
+    return findVar(vname).get(this);
   }
 
+  // Get terminal parameter value
+  public float termValue() {
+    return 0f;
+  }
 
-  // Draw tree as realistic branching structure in colour
-  public void drawRealTree(Graphics g1, float bang, String pname, float pmval) {
-    float dl, dh, dx, dy;
-    float pval;
 
-    Graphics2D g = (Graphics2D) g1;
-    Stroke dendStroke;
 
-    locx = currx;
-    locy = curry;
+  // Methods for displaying trees are in TreeDraw, so that trees
+  // can be grown without AWT (see Batch)
 
-    // soma
-    if (parent == null) {
-      dl = scsoma * scalex * length;
-      dh = scsoma * scalex * diam;
-      // Get parameter value and maximum value
-      pval = getValue(pname);
-      g.setColor(ColScale.ColVal(pval, pmval));
-      g.fillOval(locx, locy-(int)(dh/2), (int)dl, (int)dh);
-//      g.fillRect(locx, locy-(int)(dh/2), (int)dl, (int)dh);
-//    g.drawLine(locx, locy, locx + (int)dl, locy);
-      locx = currx + (int)dl;
-      // set fixed line thickness for dendrites
-//      dendStroke = new BasicStroke(scdend);
-//      g.setStroke(dendStroke);
-    };
-    
-    // draw continuing left tree
-    if (ltree != null && rtree == null) {
-      // dl = scalex * ltree.length;
-      // dx = dl * (float)Math.cos((double)bangle*Math.PI/180);
-      // dy = dl * (float)Math.sin((double)bangle*Math.PI/180);
-      if (parent == null) {
-        dx = scalex * ltree.length;
-        dy = 0;
-      } else {
-        dx = (locx - parent.locx) * (ltree.length / length);
-        dy = (locy - parent.locy) * (ltree.length / length);
-      };
-      currx = locx+(int)dx;
-      curry = locy+(int)dy;
-      // Get parameter value
-      pval = ltree.getValue(pname);
-      dendStroke = new BasicStroke(ltree.diam*scdend);
-      g.setStroke(dendStroke);
-      g.setColor(ColScale.ColVal(pval, pmval));
-      g.drawLine(locx, locy, currx, curry);
-      ltree.drawRealTree(g, bang, pname, pmval);
-    }
-    else {
-    // draw left tree
-    if (ltree != null) {
-      dl = scalex * ltree.length;
-      dx = dl * (float)Math.cos((double)bang*Math.PI/180);
-      dy = dl * (float)Math.sin((double)bang*Math.PI/180);
-      currx = locx+(int)Math.ceil((double)dx);
-      curry = locy-(int)Math.ceil((double)dy);
-      // Get parameter value
-      pval = ltree.getValue(pname);
-      dendStroke = new BasicStroke(ltree.diam*scdend);
-      g.setStroke(dendStroke);
-      g.setColor(ColScale.ColVal(pval, pmval));
-      g.drawLine(locx, locy, currx, curry);
-      ltree.drawRealTree(g, bang+(badel*bang), pname, pmval);
-    };
-    // draw right tree
-    if (rtree != null) {
-      dl = scalex * rtree.length;
-      dx = dl * (float)Math.cos((double)bang*Math.PI/180);
-      dy = dl * (float)Math.sin((double)bang*Math.PI/180);
-      currx = locx+(int)Math.ceil((double)dx);
-      curry = locy+(int)Math.ceil((double)dy);
-      // Get parameter value
-      pval = rtree.getValue(pname);
-      dendStroke = new BasicStroke(rtree.diam*scdend);
-      g.setStroke(dendStroke);
-      g.setColor(ColScale.ColVal(pval, pmval));
-      g.drawLine(locx, locy, currx, curry);
-      rtree.drawRealTree(g, bang+(badel*bang), pname, pmval);
-    };
-    };
 
-  }
-  
-  
   // Print tree to system output
   public void printTree() {
     System.out.println("Key: "+key+" Order: "+order);
@@ -1,15 +1,25 @@
 /* TreeDisplay.java
 
 Window (frame) for graphic display of tree.
+  - trees are drawn by the window's own render thread from
+    snapshots (see TreeSnapshot) handed over by the simulation
+    through a single slot: the simulation never waits for drawing,
+    and frames it hands over faster than they can be drawn are
+    dropped, only the latest being drawn
+  - "Raster drawing" (Control menu) draws straight into an image's
+    pixels (see TreeRaster), much faster for large trees
 
 Version 1.0 30-3-01 BPG
+Version 1.1 18-10-26 (render thread)
 */
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 
-public class TreeDisplay extends Frame {
+public class TreeDisplay extends Frame implements Runnable {
 
   // Private instance variables
   public DisplayCanvas dc;
@@ -29,6 +39,17 @@ public class TreeDisplay extends Frame {
   private final int Ngraphic = 11;
   private int dispw=600;  // display width
   private int disph=350;  // display height
+  private final int dispoff=10;  // offset of tree image in canvas
+
+  // Render thread and snapshot handoff
+  private final AtomicReference<TreeSnapshot> next = new AtomicReference<TreeSnapshot>();
+  private volatile TreeSnapshot last;  // last snapshot drawn
+  private volatile boolean running = true;
+  private Thread render_thread;
+  private final TreeDraw draw = new TreeDraw();  // used by render thread
+  private TreeRaster rast;  // raster drawer (render thread)
+  private Graphics2D gt;  // graphics of offscreen image
+  private static final BasicStroke CSstroke = new BasicStroke(5.0f);
 
   // Public instance variables
   public boolean refresh=true;  // refresh display
@@ -36,6 +57,7 @@ public class TreeDisplay extends Frame {
   public String dname="";  // parameter to plot
   public float dmval=1.0f;  // maximum plot value
   public int dtdisp=100;  // time interval
+  public volatile boolean rasterfl=false;  // raster drawing
 
 
   // Constructor
@@ -83,6 +105,15 @@ public class TreeDisplay extends Frame {
         dispparams();
       }
     });
+    final CheckboxMenuItem ritem = new CheckboxMenuItem("Raster drawing", rasterfl);
+    control.add(ritem);
+    ritem.addItemListener(new ItemListener() {
+      public void itemStateChanged(ItemEvent event) {
+        rasterfl = ritem.getState();
+        refresh = true;
+        paint(g);
+      }
+    });
     this.setMenuBar(mb);
 
     // add canvas for drawing in
@@ -102,7 +133,12 @@ public class TreeDisplay extends Frame {
     this.show();
 
     g = this.getGraphics();
-     
+
+    // start render thread
+    render_thread = new Thread(this, "TreeDisplay");
+    render_thread.setDaemon(true);
+    render_thread.start();
+
     // draw display;
     refresh = true;
     paint(g);
@@ -110,6 +146,91 @@ public class TreeDisplay extends Frame {
   }
 
 
+
+  // Hand over snapshot s for drawing (never waits)
+  //   - replaces any snapshot not yet taken by the render thread
+  public void show(TreeSnapshot s) {
+    next.set(s);
+    LockSupport.unpark(render_thread);
+  }
+
+
+  // Render thread has taken the last snapshot handed over
+  //   - simulation need only make a new snapshot when true
+  public boolean ready() {
+    return next.get() == null;
+  }
+
+
+  // Render thread: draw latest snapshot, wait for the next
+  public void run() {
+    TreeSnapshot s;
+
+    while (running) {
+      s = next.getAndSet(null);
+      if (s == null) {
+        LockSupport.park(this);
+        continue;
+      };
+      drawFrame(s);
+      last = s;
+      if (Tree.drawdel > 0)  // paces display, not simulation
+        try {Thread.sleep(Tree.drawdel);} catch(InterruptedException eIE){};
+    };
+  }
+
+
+  // Draw snapshot s in offscreen image and copy it to the canvas
+  private void drawFrame(TreeSnapshot s) {
+    Graphics gc;
+    int dtw, dth;
+
+    // get drawing area size (new image if changed)
+    Dimension currd = dc.getSize();
+    if (currd.width <= 2*dispoff || currd.height <= 2*dispoff) return;
+    if (gt == null || dc.imageTree.getWidth(null) != currd.width
+        || dc.imageTree.getHeight(null) != currd.height) {
+      if (gt != null) gt.dispose();
+      gt = null;
+      dc.imageTree = dc.createImage(currd.width, currd.height);
+      if (dc.imageTree == null) return;  // not yet displayable
+      gt = (Graphics2D) dc.imageTree.getGraphics();
+    };
+    dtw = currd.width - (2*dispoff);
+    dth = currd.height - (2*dispoff);
+
+    if (rasterfl) {  // draw pixels, then copy
+      if (rast == null || rast.width != dtw || rast.height != dth)
+        rast = new TreeRaster(dtw, dth);
+      rast.clear(gt.getBackground().getRGB());
+      rast.drawCS(0, dth/10, dtw/2);  // colour scale
+      rast.drawTree(s, 0, 0, dtw, dth);
+      gt.drawImage(rast.image, 0, 0, null);
+    } else {
+      gt.clearRect(0, 0, dtw, dth);
+      gt.setStroke(CSstroke);
+      ColScale.drawCS(gt, 0, dth/10, dtw/2);  // colour scale
+      draw.drawTree(s, gt, 0, 0, dtw, dth);
+    };
+
+    gc = dc.getGraphics();
+    if (gc != null) {
+      gc.drawImage(dc.imageTree, dispoff, dispoff, dc);
+      gc.dispose();
+    };
+    dc.getToolkit().sync();  // draw now
+  }
+
+
+
+  // Stop render thread when window closed
+  public void dispose() {
+    running = false;
+    LockSupport.unpark(render_thread);
+    super.dispose();
+  }
+
+
   public void update(Graphics g) {
     paint(g);
   }
@@ -127,9 +248,10 @@ public class TreeDisplay extends Frame {
       refresh = true;
     };
 
-    if (refresh) {
-      // might need drawing code from Neurite here
+    if (refresh && last != null && ready()) {
+      show(last);  // redraw (new size or way of drawing)
     };
+    refresh = false;
 
     dc.repaint();
 
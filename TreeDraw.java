@@ -0,0 +1,121 @@
+/* TreeDraw.java
+
+Drawing of trees in colour
+  - moved out of Tree so that the tree and model classes do not
+    use AWT and trees can be grown headless (see Batch)
+  - draws a snapshot of a tree (see TreeSnapshot), so drawing can
+    be done on another thread while the tree keeps growing
+  - drawing parameters (branch angle, scale factors etc.) are
+    still kept in Tree
+  - one drawer per drawing thread: it keeps its layout arrays,
+    strokes and paths from frame to frame, so once warmed up a
+    redraw allocates (almost) nothing
+  - segments are collected into one path per colour and line
+    width (quantized to STEPW pixels) and each path is drawn with
+    a single call, thickest lines first
+
+Version 1.0 18-10-26
+*/
+
+import java.awt.*;
+import java.awt.geom.Path2D;
+
+
+public class TreeDraw {
+
+  private static final int STEPW = 4;  // width steps per pixel
+  private static final int MAXQ = 64*STEPW;  // widest line (64 pixels)
+
+  // Layout of last frame
+  private int[] x = new int[64];
+  private int[] y = new int[64];
+
+  // Strokes by quantized width and paths by colour and width
+  private final BasicStroke[] strokes = new BasicStroke[MAXQ+1];
+  private final Path2D.Float[][] paths = new Path2D.Float[ColScale.NCOL][];
+  private final boolean[] used = new boolean[MAXQ+1];  // width has segments
+  private int qmax;  // widest used
+
+
+
+  // Draw tree snapshot s in colour as realistic branching structure
+  //   - (x0, y0) is the top left-hand corner of display area
+  //   - dh, dw are the height and width of the display area
+  public void drawTree(TreeSnapshot s, Graphics g1, int x0, int y0, int dw, int dh) {
+    Graphics2D g = (Graphics2D) g1;
+    float scalex = (float)dw / Tree.maxLength;
+    float dl, dhs;
+    int p, c, q;
+    Path2D.Float path;
+
+    if (s.n == 0) return;
+    if (x.length < s.n) {
+      x = new int[2*s.n];
+      y = new int[2*s.n];
+    };
+    s.layout(x0, y0, dw, dh, x, y);
+
+    // soma
+    dl = Tree.scsoma * scalex * s.len[0];
+    dhs = Tree.scsoma * scalex * s.diam[0];
+    g.setColor(ColScale.ColVal(s.val[0], s.vmax));
+    g.fillOval(x0, y[0]-(int)(dhs/2), (int)dl, (int)dhs);
+
+    // dendrites, collected by colour and width
+    qmax = 0;
+    for (int i = 1; i < s.n; i++) {
+      p = s.par[i];
+      c = ColScale.ColIndex(s.val[i], s.vmax);
+      q = quantize(s.diam[i]*Tree.scdend);
+      path = path(c, q);
+      path.moveTo(x[p], y[p]);
+      path.lineTo(x[i], y[i]);
+      used[q] = true;
+      if (q > qmax) qmax = q;
+    };
+
+    // one call per path, thick lines first
+    for (q = qmax; q >= 0; q--) {
+      if (!used[q]) continue;
+      g.setStroke(stroke(q));
+      for (c = 0; c < ColScale.NCOL; c++) {
+        if (paths[c] == null || paths[c][q] == null) continue;
+        path = paths[c][q];
+        if (path.getCurrentPoint() == null) continue;  // empty
+        g.setColor(ColScale.ColAt(c));
+        g.draw(path);
+        path.reset();  // keeps its arrays
+      };
+      used[q] = false;
+    };
+
+  }
+
+
+
+  // Quantized line width
+  private static int quantize(float w) {
+    int q = (int)(w*STEPW + 0.5f);
+    if (q < 0) return 0;
+    return (q > MAXQ) ? MAXQ : q;
+  }
+
+
+  // Stroke for quantized width q (made once)
+  private BasicStroke stroke(int q) {
+    if (strokes[q] == null)
+      strokes[q] = new BasicStroke((float)q / STEPW);
+    return strokes[q];
+  }
+
+
+  // Path for colour c and quantized width q (made once)
+  private Path2D.Float path(int c, int q) {
+    if (paths[c] == null)
+      paths[c] = new Path2D.Float[MAXQ+1];
+    if (paths[c][q] == null)
+      paths[c][q] = new Path2D.Float(Path2D.WIND_NON_ZERO, 64);
+    return paths[c][q];
+  }
+
+}
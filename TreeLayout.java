@@ -0,0 +1,173 @@
+/* TreeLayout.java
+
+Layout of a tree for drawing, kept from frame to frame
+  - each node's branch angle and unit direction are worked out
+    once, when the node first appears, and kept
+  - each node's end point is kept in tree units (um, from the
+    right end of the soma); it is only recomputed when the node's
+    length has changed or its parent's end point has moved
+  - an update is still one pass over all nodes, but for nodes
+    that have not changed it only compares and copies; the trig
+    and end point arithmetic grow with the amount of growth, not
+    the size of the tree
+  - new nodes are found by walking the preorder node array
+    alongside that of the last update: nodes are matched by
+    identity, and nodes the tree has dropped (e.g. an ADcm growth
+    cone replaced by two branches) are skipped, so the order of
+    the nodes both share still agrees
+  - a model that rebuilt its Tree nodes every step would have
+    every node laid out again
+  - starts again if the tree, the branch angle or the angle
+    scaling factor change
+  - used on one thread only (the one making snapshots, see
+    TreeSnapshot)
+
+Version 1.0 18-10-26
+*/
+
+
+public class TreeLayout {
+
+  // Last update
+  private Tree[] nodes = new Tree[0];  // nodes in preorder
+  private int[] par = new int[0];  // parent index (-1 for soma)
+  private float[] len = new float[0];  // length when laid out
+  private float[] ang = new float[0];  // branch angle of children (deg)
+  private float[] ux = new float[0];  // unit direction
+  private float[] uy = new float[0];
+  float[] px = new float[0];  // end point (tree units)
+  float[] py = new float[0];
+  int n = 0;  // number of nodes
+  private float bangle, badel;  // drawing parameters used
+
+  // Arrays of the update before (swapped with the above)
+  private Tree[] onodes = new Tree[0];
+  private int[] opar = new int[0];
+  private float[] olen = new float[0], oang = new float[0];
+  private float[] oux = new float[0], ouy = new float[0];
+  private float[] opx = new float[0], opy = new float[0];
+  private boolean[] moved = new boolean[0];  // end point changed
+
+  public int nlaid;  // end points computed in last update
+
+
+
+  // Bring layout up to date with tree br
+  //   - br must be in preorder in its context (see Tree.preorder)
+  public void update(Tree br) {
+    Tree[] cn = br.ctx.nodes;
+    int[] cpar = br.ctx.npar;
+    int nn = br.ctx.nnodes;
+    int j = 0, on = n, p;
+    boolean same;
+    Tree nd;
+
+    swap(nn);
+    if (on > 0 && (onodes[0] != br || bangle != Tree.bangle || badel != Tree.badel))
+      on = 0;  // start again
+    bangle = Tree.bangle;
+    badel = Tree.badel;
+    nlaid = 0;
+
+    for (int i = 0; i < nn; i++) {  // parents come first
+      nd = cn[i];
+      p = cpar[i];
+      nodes[i] = nd;
+      par[i] = p;
+      while (j < on && onodes[j] != nd && removed(onodes[j], br))
+        j++;  // dropped from tree since last time
+      same = (j < on && onodes[j] == nd);  // laid out last time
+
+      // direction (kept unless parent changed)
+      if (same && (p < 0 || (opar[j] >= 0 && onodes[opar[j]] == cn[p]))) {
+        ang[i] = oang[j];
+        ux[i] = oux[j];
+        uy[i] = ouy[j];
+      } else
+        direction(i, nd, p);
+
+      // end point (kept unless moved)
+      if (same && (p < 0 || !moved[p]) && olen[j] == nd.length && ux[i] == oux[j] && uy[i] == ouy[j]) {
+        px[i] = opx[j];
+        py[i] = opy[j];
+        moved[i] = false;
+      } else {
+        if (p < 0) {  // soma
+          px[i] = 0;
+          py[i] = 0;
+        } else {
+          px[i] = px[p] + nd.length * ux[i];
+          py[i] = py[p] + nd.length * uy[i];
+        };
+        moved[i] = true;
+        nlaid++;
+      };
+      len[i] = nd.length;
+      if (same) j++;
+    };
+    n = nn;
+  }
+
+
+  // Node t (laid out last time) is no longer part of tree br
+  private static boolean removed(Tree t, Tree br) {
+    while (t.parent != null) {
+      if (t.parent.ltree != t && t.parent.rtree != t) return true;
+      t = t.parent;
+    };
+    return t != br;
+  }
+
+
+  // Angle and unit direction of new node i (as first drawn by
+  // Tree.drawRealTree)
+  //   - a continuing segment keeps its parent's direction, branches
+  //     go off at the parent's branch angle above (left) or below
+  //     (right) it, and their children's angle is scaled by badel
+  private void direction(int i, Tree nd, int p) {
+    double a;
+
+    if (p < 0) {  // soma: neurite goes straight right
+      ang[i] = bangle;
+      ux[i] = 1;
+      uy[i] = 0;
+    } else if (nd.parent.rtree == null) {  // continuing
+      ang[i] = ang[p];
+      ux[i] = ux[p];
+      uy[i] = uy[p];
+    } else {
+      a = (double)ang[p]*Math.PI/180;
+      ang[i] = ang[p]+(badel*ang[p]);
+      ux[i] = (float)Math.cos(a);
+      uy[i] = (nd.parent.ltree == nd) ? -(float)Math.sin(a) : (float)Math.sin(a);
+    };
+  }
+
+
+  // Keep last update as the one before, with room for nn nodes
+  private void swap(int nn) {
+    Tree[] tn = onodes; onodes = nodes; nodes = tn;
+    int[] ti = opar; opar = par; par = ti;
+    float[] tf;
+    tf = olen; olen = len; len = tf;
+    tf = oang; oang = ang; ang = tf;
+    tf = oux; oux = ux; ux = tf;
+    tf = ouy; ouy = uy; uy = tf;
+    tf = opx; opx = px; px = tf;
+    tf = opy; opy = py; py = tf;
+    if (nodes.length < nn) {
+      nn = 2*nn;
+      nodes = new Tree[nn];
+      par = new int[nn];
+      len = new float[nn];
+      ang = new float[nn];
+      ux = new float[nn];
+      uy = new float[nn];
+      px = new float[nn];
+      py = new float[nn];
+    };
+    if (moved.length < nodes.length)
+      moved = new boolean[nodes.length];
+  }
+
+}
@@ -0,0 +1,138 @@
+/* TreeRandom.java
+
+Fast splittable random number generator (SplitMix64)
+  - one per random stream of a tree (see SimContext); not
+    synchronized, as a stream is only used by the thread growing
+    its tree
+  - split() gives an independent substream, so a tree's branching
+    and elongation streams do not disturb each other
+  - forTree(seed, i) gives the stream of tree i of a run from the
+    run's master seed, whatever thread grows the tree and in
+    whatever order, so parallel and serial runs with the same seed
+    give identical trees
+  - Gaussian values are by the polar method with StrictMath, so
+    results do not depend on the Java version or platform
+
+Version 1.0 18-10-26
+*/
+
+
+public class TreeRandom {
+
+  private static final long GOLDEN = 0x9e3779b97f4a7c15L;  // default step
+  private static long unique = System.nanoTime();  // for unseeded streams
+
+  private long state;
+  private long gamma;  // step (odd)
+  private double spare;  // second Gaussian value of last pair
+  private boolean haveSpare = false;
+
+
+
+  // Constructor with time-based seed (not repeatable)
+  public TreeRandom() {
+    this(nextUnique());
+  }
+
+
+  // Constructor with given seed
+  public TreeRandom(long seed) {
+    setSeed(seed);
+  }
+
+
+  private TreeRandom(long state, long gamma) {
+    this.state = state;
+    this.gamma = gamma;
+  }
+
+
+  private static synchronized long nextUnique() {
+    unique += GOLDEN;
+    return mix64(unique) ^ System.nanoTime();
+  }
+
+
+  // Restart stream from seed
+  public void setSeed(long seed) {
+    state = mix64(seed);
+    gamma = GOLDEN;
+    haveSpare = false;
+  }
+
+
+  // Stream of tree i of a run with master seed
+  public static TreeRandom forTree(long seed, long i) {
+    return new TreeRandom(mix64(seed + GOLDEN*(i+1)), mixGamma(seed ^ mix64(i)));
+  }
+
+
+  // Independent substream (this stream moves on)
+  public TreeRandom split() {
+    return new TreeRandom(nextLong(), mixGamma(nextLong()));
+  }
+
+
+
+  // Random values
+
+  public long nextLong() {
+    state += gamma;
+    return mix64(state);
+  }
+
+
+  // Uniform in [0,1)
+  public double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+
+  // Uniform integer in [0,n)
+  public int nextInt(int n) {
+    return (int)(nextDouble() * n);
+  }
+
+
+  // Normal with mean 0 and standard deviation 1
+  public double nextGaussian() {
+    double u, v, s;
+
+    if (haveSpare) {
+      haveSpare = false;
+      return spare;
+    };
+    do {
+      u = 2*nextDouble() - 1;
+      v = 2*nextDouble() - 1;
+      s = u*u + v*v;
+    } while (s >= 1 || s == 0);
+    s = StrictMath.sqrt(-2*StrictMath.log(s)/s);
+    spare = v*s;
+    haveSpare = true;
+    return u*s;
+  }
+
+
+
+  // Bit mixing (Stafford variant 13 and MurmurHash3 finaliser)
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+
+  // Odd step with enough bit changes
+  private static long mixGamma(long z) {
+    int n;
+
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+
+}
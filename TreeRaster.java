@@ -0,0 +1,257 @@
+/* TreeRaster.java
+
+Fast drawing of trees straight into the pixels of an image
+  - an alternative to TreeDraw for large trees: segments are
+    filled row by row into the image's int[] pixel buffer, with
+    no Graphics2D calls, strokes or paths
+  - thin lines (width up to one pixel) by Bresenham's algorithm,
+    wider lines as filled rectangles with square ends (as drawn
+    by a BasicStroke), soma as a filled ellipse
+  - same layout and colours as TreeDraw (see TreeSnapshot and
+    ColScale), but without antialiasing
+  - needs no screen, so can be used headless (e.g. for saving
+    frames)
+  - one per drawing thread
+
+Version 1.0 18-10-26
+*/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+
+public class TreeRaster {
+
+  public final int width, height;
+  public final BufferedImage image;
+  private final int[] pix;  // image pixels (row by row)
+
+  // Layout of last frame
+  private int[] x = new int[64];
+  private int[] y = new int[64];
+
+  private final float[] qx = new float[4];  // corners of wide line
+  private final float[] qy = new float[4];
+  private final double[] lp = new double[4];  // clipping terms
+  private final double[] lq = new double[4];
+  private double cx1, cy1, cx2, cy2;  // clipped line (see clip)
+
+
+
+  // Constructor
+  public TreeRaster(int width, int height) {
+    this.width = width;
+    this.height = height;
+    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    pix = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+  }
+
+
+
+  // Fill whole image with colour rgb
+  public void clear(int rgb) {
+    java.util.Arrays.fill(pix, rgb);
+  }
+
+
+  // Draw colour scale (as ColScale.drawCS with 5 pixel line)
+  public void drawCS(int x0, int y0, int dw) {
+    int dx = dw / (ColScale.NCOL-1);
+
+    for (int i = 0; i < ColScale.NCOL; i++)
+      drawLine(x0+(i*dx), y0, x0+((i+1)*dx), y0, 5.0f, ColScale.RGBAt(i));
+  }
+
+
+
+  // Draw tree snapshot s in colour as realistic branching structure
+  //   - (x0, y0) is the top left-hand corner of display area
+  //   - dh, dw are the height and width of the display area
+  public void drawTree(TreeSnapshot s, int x0, int y0, int dw, int dh) {
+    float scalex = (float)dw / Tree.maxLength;
+    float dl, dhs;
+    int p;
+
+    if (s.n == 0) return;
+    if (x.length < s.n) {
+      x = new int[2*s.n];
+      y = new int[2*s.n];
+    };
+    s.layout(x0, y0, dw, dh, x, y);
+
+    // soma
+    dl = Tree.scsoma * scalex * s.len[0];
+    dhs = Tree.scsoma * scalex * s.diam[0];
+    fillOval(x0, y[0]-(int)(dhs/2), (int)dl, (int)dhs,
+      ColScale.RGBAt(ColScale.ColIndex(s.val[0], s.vmax)));
+
+    // dendrites (parents before children)
+    for (int i = 1; i < s.n; i++) {
+      p = s.par[i];
+      drawLine(x[p], y[p], x[i], y[i], s.diam[i]*Tree.scdend,
+        ColScale.RGBAt(ColScale.ColIndex(s.val[i], s.vmax)));
+    };
+
+  }
+
+
+
+  // Draw line from (x1, y1) to (x2, y2) of width lw
+  //   - integer coordinates are pixel centres
+  //   - lines reaching outside the image are first clipped (to the
+  //     image for thin lines, to a margin wider than the line ends
+  //     for wide lines), so any coordinates can be given
+  public void drawLine(int x1, int y1, int x2, int y2, float lw, int rgb) {
+    double ax = x1, ay = y1, bx = x2, by = y2;
+    double ux, uy, len, hw, m;
+
+    if (lw <= 1.0f) {
+      if (x1 < 0 || x1 >= width || y1 < 0 || y1 >= height
+          || x2 < 0 || x2 >= width || y2 < 0 || y2 >= height) {
+        if (!clip(ax, ay, bx, by, 0, width-1, 0, height-1)) return;
+        x1 = (int)Math.round(cx1);  y1 = (int)Math.round(cy1);
+        x2 = (int)Math.round(cx2);  y2 = (int)Math.round(cy2);
+      };
+      thinLine(x1, y1, x2, y2, rgb);
+      return;
+    };
+
+    // rectangle around line, extended by half width at both ends
+    hw = lw / 2.0;
+    m = lw + 1;  // margin: clipped ends stay outside the image
+    if (x1 < -m || x1 > width+m || y1 < -m || y1 > height+m
+        || x2 < -m || x2 > width+m || y2 < -m || y2 > height+m) {
+      if (!clip(ax, ay, bx, by, -m, width+m, -m, height+m)) return;
+      ax = cx1;  ay = cy1;
+      bx = cx2;  by = cy2;
+    };
+    len = Math.sqrt((bx-ax)*(bx-ax) + (by-ay)*(by-ay));
+    if (len > 0) {
+      ux = (bx-ax) / len * hw;
+      uy = (by-ay) / len * hw;
+    } else {  // square
+      ux = hw;
+      uy = 0;
+    };
+    qx[0] = (float)(ax+0.5 - ux - uy);  qy[0] = (float)(ay+0.5 - uy + ux);
+    qx[1] = (float)(ax+0.5 - ux + uy);  qy[1] = (float)(ay+0.5 - uy - ux);
+    qx[2] = (float)(bx+0.5 + ux + uy);  qy[2] = (float)(by+0.5 + uy - ux);
+    qx[3] = (float)(bx+0.5 + ux - uy);  qy[3] = (float)(by+0.5 + uy + ux);
+    fillQuad(rgb);
+  }
+
+
+  // Clip line (x1, y1)-(x2, y2) to rectangle [xlo,xhi] x [ylo,yhi]
+  // (Liang-Barsky)
+  //   - clipped line in (cx1, cy1)-(cx2, cy2); false if none left
+  private boolean clip(double x1, double y1, double x2, double y2,
+      double xlo, double xhi, double ylo, double yhi) {
+    double dx = x2-x1, dy = y2-y1;
+    double t0 = 0, t1 = 1, r;
+
+    lp[0] = -dx;  lq[0] = x1-xlo;
+    lp[1] = dx;   lq[1] = xhi-x1;
+    lp[2] = -dy;  lq[2] = y1-ylo;
+    lp[3] = dy;   lq[3] = yhi-y1;
+    for (int k = 0; k < 4; k++) {
+      if (lp[k] == 0) {
+        if (lq[k] < 0) return false;  // parallel and outside
+        continue;
+      };
+      r = lq[k] / lp[k];
+      if (lp[k] < 0) {
+        if (r > t1) return false;
+        if (r > t0) t0 = r;
+      } else {
+        if (r < t0) return false;
+        if (r < t1) t1 = r;
+      };
+    };
+    cx1 = x1 + t0*dx;  cy1 = y1 + t0*dy;
+    cx2 = x1 + t1*dx;  cy2 = y1 + t1*dy;
+    return true;
+  }
+
+
+  // One pixel wide line (Bresenham)
+  //   - end points must be inside the image (see drawLine)
+  private void thinLine(int x1, int y1, int x2, int y2, int rgb) {
+    int dx = Math.abs(x2-x1), dy = -Math.abs(y2-y1);
+    int sx = (x1 < x2) ? 1 : -1, sy = (y1 < y2) ? 1 : -1;
+    int err = dx + dy, e2;
+
+    while (true) {
+      if (x1 >= 0 && x1 < width && y1 >= 0 && y1 < height)
+        pix[y1*width + x1] = rgb;
+      if (x1 == x2 && y1 == y2) break;
+      e2 = 2*err;
+      if (e2 >= dy) {
+        err += dy;
+        x1 += sx;
+      };
+      if (e2 <= dx) {
+        err += dx;
+        y1 += sy;
+      };
+    };
+  }
+
+
+  // Fill convex quadrilateral (qx, qy): pixels with centres inside
+  private void fillQuad(int rgb) {
+    float ymin = qy[0], ymax = qy[0];
+    float yc, ya, yb, xi, xl, xr;
+    int r0, r1, c0, c1, k2, o;
+
+    for (int k = 1; k < 4; k++) {
+      if (qy[k] < ymin) ymin = qy[k];
+      if (qy[k] > ymax) ymax = qy[k];
+    };
+    r0 = Math.max(0, (int)Math.ceil(ymin - 0.5f));
+    r1 = Math.min(height-1, (int)Math.ceil(ymax - 0.5f) - 1);
+    for (int r = r0; r <= r1; r++) {
+      yc = r + 0.5f;
+      xl = Float.MAX_VALUE;
+      xr = -Float.MAX_VALUE;
+      for (int k = 0; k < 4; k++) {  // edges crossing this row
+        k2 = (k+1) & 3;
+        ya = qy[k];
+        yb = qy[k2];
+        if ((ya <= yc && yb > yc) || (yb <= yc && ya > yc)) {
+          xi = qx[k] + (yc - ya) * (qx[k2] - qx[k]) / (yb - ya);
+          if (xi < xl) xl = xi;
+          if (xi > xr) xr = xi;
+        };
+      };
+      if (xl > xr) continue;
+      c0 = Math.max(0, (int)Math.ceil(xl - 0.5f));
+      c1 = Math.min(width-1, (int)Math.ceil(xr - 0.5f) - 1);
+      o = r*width;
+      for (int c = c0; c <= c1; c++) pix[o+c] = rgb;
+    };
+  }
+
+
+  // Fill ellipse in rectangle with top left corner (x0, y0), width
+  // w and height h (as Graphics.fillOval)
+  public void fillOval(int x0, int y0, int w, int h, int rgb) {
+    float a = w / 2.0f, b = h / 2.0f;
+    float cx = x0 + a, cy = y0 + b;
+    float dy, hx;
+    int r0, r1, c0, c1, o;
+
+    if (w <= 0 || h <= 0) return;
+    r0 = Math.max(0, y0);
+    r1 = Math.min(height-1, y0+h-1);
+    for (int r = r0; r <= r1; r++) {
+      dy = (r + 0.5f - cy) / b;
+      if (dy*dy >= 1) continue;
+      hx = a * (float)Math.sqrt((double)(1 - dy*dy));
+      c0 = Math.max(0, (int)Math.ceil(cx - hx - 0.5f));
+      c1 = Math.min(width-1, (int)Math.ceil(cx + hx - 0.5f) - 1);
+      o = r*width;
+      for (int c = c0; c <= c1; c++) pix[o+c] = rgb;
+    };
+  }
+
+}
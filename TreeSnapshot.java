@@ -0,0 +1,92 @@
+/* TreeSnapshot.java
+
+Copy of what is needed to draw a tree at one moment
+  - made on the simulation thread in one pass over the preorder
+    node array, then drawn later on another thread (see
+    TreeDisplay), so drawing neither holds up the simulation nor
+    sees a tree half way through a time step
+  - per node: parent, length, diameter, value of the displayed
+    variable and end point in tree units (from a TreeLayout, kept
+    by whoever makes the snapshots, so only the part of the tree
+    that has grown is laid out again)
+  - never changed once made
+  - no AWT, so snapshots can also be made headless
+
+Version 1.0 18-10-26
+*/
+
+
+public class TreeSnapshot {
+
+  public final int n;  // number of nodes (preorder)
+  public final int[] par;  // parent index (-1 for soma)
+  public final float[] len;  // length
+  public final float[] diam;  // diameter
+  public final float[] val;  // value of displayed variable
+  public final float[] px, py;  // end point (um from soma's right end)
+  public final float vmax;  // maximum display value
+  public final double t;  // simulation time
+  public final long step;  // time step number
+
+
+
+  // Snapshot of tree br showing variable vname (maximum vmax)
+  public TreeSnapshot(Tree br, String vname, float vmax, double t, long step) {
+    this(br, new TreeLayout(), vname, vmax, t, step);
+  }
+
+
+  // Snapshot of tree br, laid out by updating lay
+  //   - tree nodes are brought up to date first (see syncTree)
+  public TreeSnapshot(Tree br, TreeLayout lay, String vname, float vmax, double t, long step) {
+    Tree[] nodes;
+    int[] npar;
+    Tree nd;
+    TreeVar v;
+
+    br.syncTree();
+    n = br.preorder();
+    lay.update(br);
+    nodes = br.ctx.nodes;
+    npar = br.ctx.npar;
+    v = br.findVar(vname);
+    par = new int[n];
+    len = new float[n];
+    diam = new float[n];
+    val = new float[n];
+    px = new float[n];
+    py = new float[n];
+    System.arraycopy(npar, 0, par, 0, n);
+    System.arraycopy(lay.px, 0, px, 0, n);
+    System.arraycopy(lay.py, 0, py, 0, n);
+    for (int i = 0; i < n; i++) {
+      nd = nodes[i];
+      len[i] = nd.length;
+      diam[i] = nd.diam;
+      val[i] = v.get(nd);
+    };
+    this.vmax = vmax;
+    this.t = t;
+    this.step = step;
+  }
+
+
+
+  // Screen layout in a display area with top left corner (x0, y0)
+  // and width dw and height dh
+  //   - x, y: end point of each node's line (soma: its right end)
+  //   - scales the end points by Tree.maxLength, with the soma
+  //     (scaled by Tree.scsoma) at the left in the middle
+  public void layout(int x0, int y0, int dw, int dh, int[] x, int[] y) {
+    float scalex = (float)dw / Tree.maxLength;
+    float xs, ys;
+
+    xs = x0 + (int)(Tree.scsoma * scalex * len[0]) + 0.5f;
+    ys = y0 + (dh / 2) + 0.5f;  // middle height
+    for (int i = 0; i < n; i++) {
+      x[i] = (int)Math.floor(xs + scalex*px[i]);
+      y[i] = (int)Math.floor(ys + scalex*py[i]);
+    };
+  }
+
+}
@@ -0,0 +1,16 @@
+/* TreeSource.java
+
+Maker of new trees (cell body and first neurite) for streaming
+  - lets trees be created when their growth task starts rather than
+    all at once (see Ensemble.growTrees)
+
+Version 1.0 18-10-26
+*/
+
+
+public interface TreeSource {
+
+  // New tree with index i
+  Tree newTree(int i);
+
+}
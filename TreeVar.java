@@ -0,0 +1,35 @@
+/* TreeVar.java
+
+Named model variable with typed access
+  - each model declares its variables once (see Tree.variables)
+  - callers look a variable up by name once (Tree.findVar) and
+    then read its value from any node of the tree without
+    string comparisons
+
+Version 1.0 18-10-26
+*/
+
+
+public abstract class TreeVar {
+
+  public final String name;  // name used in menus and files
+
+
+  // Constructor with variable name
+  public TreeVar(String name) {
+    this.name = name;
+  }
+
+
+  // Value of variable in node t
+  public abstract float get(Tree t);
+
+
+  // Variable for unknown names (always zero)
+  public static final TreeVar NONE = new TreeVar("") {
+    public float get(Tree t) {
+      return 0f;
+    }
+  };
+
+}